@@ -0,0 +1,196 @@
+package org.pale.gemininpc;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import dev.langchain4j.data.message.ChatMessage;
+import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import net.citizensnpcs.api.npc.NPC;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.pale.gemininpc.ai.Chat;
+import org.pale.gemininpc.ai.Lane;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the ambient "(you look around)" updates for several NPCs as one request. When an NPC is
+ * picked for an ambient update, we gather up other NPCs which are also due one, share its persona
+ * and are in the same world, and ask the model for all their responses at once - one round trip,
+ * one system prompt, instead of one of each per NPC.
+ * <p>
+ * The request is stateless: it doesn't go through the NPCs' chats, and each NPC gets its full
+ * context rather than differences. Each NPC's response is then posted to its mailbox, whose drain
+ * adds it to the NPC's chat memory - so it remembers what it said - and passes it on to be said.
+ * Each NPC's own quota is charged, and the world and global quotas once. The persona's system
+ * instructions are generated for the first NPC in the batch and shared, so per-NPC random
+ * personality features don't apply to batched ambient remarks - which is the price of the saving.
+ * Set batch-size to 1 to turn it off.
+ */
+public class AmbientBatcher {
+    private static final String INPUT = "(you look around)";
+    private static final String INSTRUCTIONS = """
+            You are writing background remarks for several characters at once. They all share the \
+            persona described below, but each has their own name and situation. You will get a JSON \
+            object with an "input" and a list of "characters", each with an "id", a "name" and a \
+            "context". Reply with a JSON object containing a "responses" array, with one object for \
+            each character: {"id": the character's id, "text": what they say (or null to say \
+            nothing), "action": their action (or null)}. Keep each remark short and in character.
+            
+            The persona:
+            """;
+    private static final Gson gson = new Gson();
+
+    private final Plugin plugin;
+    private final int batchSize;
+
+    // the model's reply
+    private static class BatchResponse {
+        List<Entry> responses;
+
+        static class Entry {
+            int id;
+            String text;
+            String action;
+        }
+    }
+
+    /**
+     * @param plugin the plugin
+     * @param cs     the "ambient" section of the config - may be null, in which case we use the defaults
+     */
+    public AmbientBatcher(Plugin plugin, ConfigurationSection cs) {
+        this.plugin = plugin;
+        batchSize = Math.max(1, cs == null ? 4 : cs.getInt("batch-size", 4));
+    }
+
+    /**
+     * Run an ambient update for an NPC, batched with any others which can go with it. If there
+     * are none, or batching is off, this is just the NPC's own infrequent update. Main thread only.
+     * @param first the NPC picked for the update
+     */
+    public void update(GeminiNPCTrait first) {
+        if (batchSize < 2 || !first.isDueForAmbient()) {
+            first.updateInfrequent();
+            return;
+        }
+        World w = first.getNPC().getStoredLocation().getWorld();
+        List<GeminiNPCTrait> batch = new ArrayList<>();
+        batch.add(first);
+        for (NPC npc : plugin.chatters) {
+            if (batch.size() >= batchSize)
+                break;
+            GeminiNPCTrait t = Plugin.getTraitFor(npc);
+            if (t != null && t != first && t.isDueForAmbient()
+                    && !plugin.tokens.isOverBudget(t.tokenAccountName(), t.personaName)
+                    && t.personaName.equals(first.personaName)
+                    && npc.getStoredLocation().getWorld() == w) {
+                batch.add(t);
+            }
+        }
+        if (batch.size() == 1) {
+            first.updateInfrequent();
+            return;
+        }
+
+        if (!plugin.callsEnabled || plugin.model.breaker.isOpen())
+            return;
+        // the whole batch is one request as far as the world and global quotas go, but it counts
+        // against each NPC's own quota. Those which have used theirs up are left out.
+        List<String> ok = plugin.quotas.tryAcquireShared(Lane.AMBIENT, w == null ? null : w.getName(),
+                batch.stream().map(t -> Integer.toString(t.getNPC().getId())).toList());
+        if (ok.isEmpty()) {
+            Plugin.log("Rate limit (" + Lane.AMBIENT + ") exceeded, not sending ambient batch");
+            return;
+        }
+
+        // capture everything we need here on the main thread
+        List<GeminiNPCTrait> traits = batch.stream()
+                .filter(t -> ok.contains(Integer.toString(t.getNPC().getId()))).toList();
+        List<ContextSnapshot> snaps = new ArrayList<>();
+        JsonArray chars = new JsonArray();
+        for (int i = 0; i < traits.size(); i++) {
+            GeminiNPCTrait t = traits.get(i);
+            t.updateInfrequentRecently.set(null);
+            t.createChatIfNull();
+            ContextSnapshot snap = t.captureContext();
+            snaps.add(snap);
+            JsonObject context = snap.toJson(plugin.contextEncoder, plugin, t.getNPC().getFullName());
+            JsonObject o = new JsonObject();
+            o.addProperty("id", i);
+            o.addProperty("name", t.getNPC().getName());
+            o.add("context", context);
+            chars.add(o);
+        }
+        JsonObject request = new JsonObject();
+        request.addProperty("input", INPUT);
+        request.add("characters", chars);
+        String system = INSTRUCTIONS + first.getSystemInstructions();
+
+        if (!plugin.requestExecutor.submit(Lane.AMBIENT, () -> process(traits, snaps, system, request.toString()), null))
+            Plugin.warn("AI request queue full, dropping ambient batch");
+    }
+
+    /**
+     * Send the batch and post each NPC its response. Runs on a request executor thread.
+     */
+    private void process(List<GeminiNPCTrait> traits, List<ContextSnapshot> snaps, String system, String request) {
+        String what = "ambient batch of " + traits.size() + " for persona " + traits.getFirst().personaName;
+        Plugin.log("Sending " + what + " to AI: " + request);
+        plugin.request_count.incrementAndGet();
+        List<ChatMessage> messages = List.of(SystemMessage.from(system), UserMessage.from(request));
+        ChatResponse cr;
+        try {
+            cr = plugin.model.model.chat(messages);
+        } catch (RuntimeException e) {
+            Plugin.warn("AI request for " + what + " failed: " + e);
+            return;
+        }
+        // the NPCs share the cost equally
+        for (GeminiNPCTrait t : traits) {
+            plugin.tokens.record(cr.tokenUsage(), 1.0 / traits.size(), t.tokenAccountName(), t.personaName, List.of());
+        }
+        // there may be no text at all if the model refused, or only wanted to call a tool
+        String text = cr.aiMessage() == null ? null : cr.aiMessage().text();
+        if (text == null || text.isBlank()) {
+            Plugin.warn("No text in response to " + what);
+            return;
+        }
+
+        int start = text.indexOf('{');
+        int end = text.lastIndexOf('}');
+        BatchResponse br = null;
+        if (start >= 0 && end > start) {
+            try {
+                br = gson.fromJson(text.substring(start, end + 1), BatchResponse.class);
+            } catch (JsonParseException e) {
+                Plugin.warn("Cannot parse ambient batch response: " + e.getMessage());
+            }
+        }
+        if (br == null || br.responses == null) {
+            Plugin.warn("Bad ambient batch response: " + text);
+            return;
+        }
+
+        for (BatchResponse.Entry e : br.responses) {
+            if (e == null || e.id < 0 || e.id >= traits.size())
+                continue;
+            GeminiNPCTrait t = traits.get(e.id);
+            Chat.Response r = new Chat.Response();
+            r.text = e.text;
+            r.action = e.action;
+            // the NPC's own request thread may be using its chat right now, so we can't add the
+            // exchange to it here. Instead it goes through the NPC's mailbox, whose drain adds it
+            // to the chat (with the context written by the NPC's own context builder, so that
+            // knows what it sent) and passes the response on.
+            GeminiNPCTrait.Input in = new GeminiNPCTrait.Input("event: " + INPUT, Lane.AMBIENT, null, false,
+                    snaps.get(e.id), r);
+            if (!t.mailbox.post(in, Lane.AMBIENT))
+                Plugin.warn("AI request queue full, dropping ambient remark");
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.pale.gemininpc;
+
+import org.bukkit.Chunk;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Registry;
+import org.bukkit.block.Biome;
+import org.bukkit.block.Block;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the light levels and biome at the blocks our NPCs stand in, so an NPC which stands
+ * still in its shop all day doesn't read the world every time its context is captured. Samples
+ * are grouped by chunk: placing or breaking a block throws away the samples in that chunk and its
+ * neighbours (light spreads), and unloading a chunk throws away its own. Samples also expire after
+ * a while, since the light level changes with the time of day.
+ * <p>
+ * Whether a storm is snow or rain is decided when the sample is taken, from a table of the
+ * altitude above which each cold biome gets snow. Main thread only.
+ */
+public class BlockSampleCache {
+    /**
+     * @param skyLight   light from the sky
+     * @param blockLight light from blocks
+     * @param totalLight the overall light level
+     * @param snow       true if a storm here would be snow
+     * @param when       when the sample was taken
+     */
+    public record Sample(byte skyLight, byte blockLight, byte totalLight, boolean snow, long when) {}
+
+    private record ChunkKey(String world, int x, int z) {}
+
+    private final Map<ChunkKey, Map<Long, Sample>> chunks = new HashMap<>();
+    private final long ttlMillis;
+    private long hits = 0, misses = 0;
+
+    // the altitude above which each cold biome gets snow rather than rain. Biomes which
+    // aren't in here never get snow.
+    private final Map<Biome, Integer> snowAltitude = new HashMap<>();
+
+    /**
+     * @param cs the "environment" section of the config - may be null, in which case we use the defaults
+     */
+    public BlockSampleCache(ConfigurationSection cs) {
+        ttlMillis = 1000L * (cs == null ? 30 : cs.getInt("sample-ttl-seconds", 30));
+        addSnowBiomes(Integer.MIN_VALUE, List.of(
+                "FROZEN_OCEAN", "DEEP_FROZEN_OCEAN", "SNOWY_BEACH", "SNOWY_PLAINS",
+                "SNOWY_SLOPES", "SNOWY_TAIGA"));
+        addSnowBiomes(100, List.of(
+                "WINDSWEPT_GRAVELLY_HILLS", "WINDSWEPT_HILLS", "WINDSWEPT_FOREST", "STONY_SHORE",
+                "DRIPSTONE_CAVES"));
+        addSnowBiomes(160, List.of("TAIGA", "OLD_GROWTH_SPRUCE_TAIGA"));
+        addSnowBiomes(200, List.of("OLD_GROWTH_PINE_TAIGA"));
+    }
+
+    private void addSnowBiomes(int altitude, List<String> names) {
+        for (String name : names) {
+            Biome b = Registry.BIOME.get(NamespacedKey.minecraft(name.toLowerCase()));
+            if (b == null)
+                Plugin.log("Unknown biome: " + name);
+            else
+                snowAltitude.put(b, altitude);
+        }
+    }
+
+    private static long blockKey(Block b) {
+        // x and z are within the chunk, so they only need 4 bits each
+        return ((long) b.getY() << 8) | ((b.getX() & 15) << 4) | (b.getZ() & 15);
+    }
+
+    /**
+     * Get the sample for a block, taking it from the world if we don't have a fresh one.
+     * @param b the block
+     * @return the sample
+     */
+    public Sample get(Block b) {
+        long now = System.currentTimeMillis();
+        Map<Long, Sample> chunk = chunks.computeIfAbsent(
+                new ChunkKey(b.getWorld().getName(), b.getX() >> 4, b.getZ() >> 4), k -> new HashMap<>());
+        long key = blockKey(b);
+        Sample s = chunk.get(key);
+        if (s != null && now - s.when < ttlMillis) {
+            hits++;
+            return s;
+        }
+        misses++;
+        Integer alt = snowAltitude.get(b.getBiome());
+        s = new Sample(b.getLightFromSky(), b.getLightFromBlocks(), b.getLightLevel(),
+                alt != null && b.getY() > alt, now);
+        chunk.put(key, s);
+        return s;
+    }
+
+    /**
+     * A block has changed - throw away the samples for its chunk and those around it.
+     * @param b the block
+     */
+    public void blockChanged(Block b) {
+        if (chunks.isEmpty())
+            return;
+        String w = b.getWorld().getName();
+        int cx = b.getX() >> 4, cz = b.getZ() >> 4;
+        for (int x = cx - 1; x <= cx + 1; x++) {
+            for (int z = cz - 1; z <= cz + 1; z++) {
+                chunks.remove(new ChunkKey(w, x, z));
+            }
+        }
+    }
+
+    /**
+     * A chunk has been unloaded - throw away its samples.
+     * @param c the chunk
+     */
+    public void chunkUnloaded(Chunk c) {
+        chunks.remove(new ChunkKey(c.getWorld().getName(), c.getX(), c.getZ()));
+    }
+
+    public void clear() {
+        chunks.clear();
+    }
+
+    public String getStats() {
+        long total = hits + misses;
+        return String.format("%d chunks, %d hits, %d misses (%.0f%% hit rate)", chunks.size(), hits, misses,
+                total == 0 ? 0.0 : 100.0 * hits / total);
+    }
+}
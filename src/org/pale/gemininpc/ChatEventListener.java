@@ -14,9 +14,15 @@ import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.entity.EntityDamageByEntityEvent;
 import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityPickupItemEvent;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.bukkit.event.weather.ThunderChangeEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.weather.WeatherChangeEvent;
 import org.bukkit.inventory.ItemStack;
 
 import java.util.ArrayList;
@@ -134,6 +140,50 @@ public final class ChatEventListener implements Listener {
         }
     }
 
+    /**
+     * If one of our NPCs picks something up, its inventory needs capturing again for the context.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPickup(EntityPickupItemEvent e){
+        GeminiNPCTrait t = Plugin.getTraitFor(e.getEntity());
+        if(t != null) {
+            t.contextBuilder.inventory.invalidate();
+        }
+    }
+
+    /**
+     * Weather changes are passed on to the shared world environment, so NPCs see them at once.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWeatherChange(WeatherChangeEvent e){
+        plugin.worldEnvironment.stormChanged(e.getWorld(), e.toWeatherState());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onThunderChange(ThunderChangeEvent e){
+        plugin.worldEnvironment.thunderChanged(e.getWorld(), e.toThunderState());
+    }
+
+    // Changes which make the cached light and biome samples - and line of sight results - out of date
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent e){
+        plugin.blockSamples.blockChanged(e.getBlock());
+        plugin.lineOfSight.blockChanged(e.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent e){
+        plugin.blockSamples.blockChanged(e.getBlock());
+        plugin.lineOfSight.blockChanged(e.getBlock());
+    }
+
+    @EventHandler
+    public void onChunkUnload(ChunkUnloadEvent e){
+        plugin.blockSamples.chunkUnloaded(e.getChunk());
+        plugin.lineOfSight.chunkUnloaded(e.getChunk());
+    }
+
     @EventHandler
     public void navCancelled(NavigationCancelEvent e){
         NPC npc = e.getNPC();
@@ -0,0 +1,178 @@
+package org.pale.gemininpc;
+
+import net.citizensnpcs.api.npc.NPC;
+import org.bukkit.Location;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A spatial index of the chatters, so that finding the NPCs near a player only looks at the few in
+ * the neighbouring cells rather than at every chatter on the server. Each world is divided into
+ * square columns of CELL blocks (the same as chunks). NPCs are added when they spawn, removed
+ * when they despawn, and moved between cells by their trait's tick - which is cheap unless they've
+ * actually crossed into another cell. Main thread only.
+ */
+public class ChatterIndex {
+    private static final int CELL_SHIFT = 4;    // cells are 16 blocks across
+    private static final int CELL = 1 << CELL_SHIFT;
+
+    /**
+     * Where an NPC is in the index.
+     */
+    private static class Pos {
+        String world;
+        long cell;
+    }
+
+    // world name -> cell -> the NPCs in it
+    private final Map<String, Map<Long, List<NPC>>> worlds = new HashMap<>();
+    private final Map<NPC, Pos> positions = new HashMap<>();
+    private long moves = 0;     // how many times an NPC has changed cell
+
+    private static long cell(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xffffffffL);
+    }
+
+    /**
+     * Add an NPC to the index, or move it if it's already there.
+     * @param npc the NPC
+     * @param loc where it is
+     */
+    public void add(NPC npc, Location loc) {
+        World w = loc.getWorld();
+        if (w == null)
+            return;
+        Pos p = new Pos();
+        p.world = w.getName();
+        p.cell = cell(loc.getBlockX() >> CELL_SHIFT, loc.getBlockZ() >> CELL_SHIFT);
+        Pos old = positions.put(npc, p);
+        if (old != null)
+            unlink(npc, old);
+        worlds.computeIfAbsent(p.world, k -> new HashMap<>())
+                .computeIfAbsent(p.cell, k -> new ArrayList<>(4))
+                .add(npc);
+    }
+
+    /**
+     * Remove an NPC from the index; does nothing if it isn't there.
+     */
+    public void remove(NPC npc) {
+        Pos p = positions.remove(npc);
+        if (p != null)
+            unlink(npc, p);
+    }
+
+    private void unlink(NPC npc, Pos p) {
+        Map<Long, List<NPC>> cells = worlds.get(p.world);
+        if (cells == null)
+            return;
+        List<NPC> list = cells.get(p.cell);
+        if (list != null) {
+            list.remove(npc);
+            if (list.isEmpty())
+                cells.remove(p.cell);
+        }
+        if (cells.isEmpty())
+            worlds.remove(p.world);
+    }
+
+    /**
+     * Tell the index where an NPC is now. Called every tick, so it does nothing (and allocates
+     * nothing) unless the NPC has moved into another cell or world.
+     * @param npc the NPC
+     * @param loc where it is
+     */
+    public void moved(NPC npc, Location loc) {
+        Pos p = positions.get(npc);
+        if (p == null)
+            return;     // not spawned, or not a chatter
+        World w = loc.getWorld();
+        long c = cell(loc.getBlockX() >> CELL_SHIFT, loc.getBlockZ() >> CELL_SHIFT);
+        if (c == p.cell && w != null && w.getName().equals(p.world))
+            return;
+        moves++;
+        add(npc, loc);
+    }
+
+    /**
+     * Find the NPCs which might be within a distance of a location - that is, each NPC in a cell
+     * which overlaps the square around it. The caller must still check the actual distance.
+     * @param loc    the location
+     * @param radius the distance in blocks
+     * @param out    cleared, and then filled with the candidates - so the caller can reuse it
+     */
+    public void findNear(Location loc, double radius, List<NPC> out) {
+        out.clear();
+        World w = loc.getWorld();
+        if (w == null)
+            return;
+        Map<Long, List<NPC>> cells = worlds.get(w.getName());
+        if (cells == null)
+            return;
+        int x0 = (int) Math.floor(loc.getX() - radius) >> CELL_SHIFT;
+        int x1 = (int) Math.floor(loc.getX() + radius) >> CELL_SHIFT;
+        int z0 = (int) Math.floor(loc.getZ() - radius) >> CELL_SHIFT;
+        int z1 = (int) Math.floor(loc.getZ() + radius) >> CELL_SHIFT;
+        for (int cx = x0; cx <= x1; cx++) {
+            for (int cz = z0; cz <= z1; cz++) {
+                List<NPC> list = cells.get(cell(cx, cz));
+                if (list != null)
+                    out.addAll(list);
+            }
+        }
+    }
+
+    /**
+     * @return the names of the worlds with spawned chatters in them
+     */
+    public Set<String> getWorlds() {
+        return worlds.keySet();
+    }
+
+    /**
+     * Find the chunks around the chatters in a world - the chunks they're in, and those within a
+     * margin of them. Cells are the same size as chunks, so these are cells too.
+     * @param world  the world name
+     * @param margin how many chunks around each chatter's chunk to include
+     * @return the chunks, each packed into a long - see {@link #cellX} and {@link #cellZ}
+     */
+    public Set<Long> chunksAround(String world, int margin) {
+        Set<Long> out = new HashSet<>();
+        Map<Long, List<NPC>> cells = worlds.get(world);
+        if (cells != null) {
+            for (long c : cells.keySet()) {
+                int cx = cellX(c), cz = cellZ(c);
+                for (int x = cx - margin; x <= cx + margin; x++) {
+                    for (int z = cz - margin; z <= cz + margin; z++)
+                        out.add(cell(x, z));
+                }
+            }
+        }
+        return out;
+    }
+
+    public static int cellX(long cell) {
+        return (int) (cell >> 32);
+    }
+
+    public static int cellZ(long cell) {
+        return (int) cell;
+    }
+
+    /**
+     * @return a line of statistics for the usage command
+     */
+    public String getStats() {
+        int cells = 0;
+        for (Map<Long, List<NPC>> m : worlds.values())
+            cells += m.size();
+        return String.format("%d NPCs in %d cells of %d blocks, %d cell changes",
+                positions.size(), cells, CELL, moves);
+    }
+}
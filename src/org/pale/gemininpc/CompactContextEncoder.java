@@ -0,0 +1,134 @@
+package org.pale.gemininpc;
+
+import java.util.Map;
+
+/**
+ * The compact context encoding: short keys, numbers and enumerated values rather than sentences,
+ * and - in a full context - no keys at all for things which are at their defaults. The schema is
+ * described to the model by the common template, when "compactContext" is true. Keep the two in step!
+ * <pre>
+ *   t      time (HH:MM), or "?" if underground
+ *   w      weather: clear, rain, snow, storm or "?" if underground
+ *   r, rd  region name and description
+ *   at, atd    the waypoint we're at, and its description
+ *   near, neard  a waypoint we're near, and its description
+ *   p      nearby players
+ *   sun, lamp  light levels 0-15 (default 0)
+ *   wld    world
+ *   atk    who attacked us recently, or false if nobody has lately (default false)
+ *   seen, heard  nearest monster seen and heard, or "-" (default "-")
+ *   cmb    seconds since we were last fighting, 0 if we are now (Sentinels only)
+ *   guard  the player we're guarding
+ *   hp     health percentage (default 100)
+ *   inv    how many of each material we're carrying
+ * </pre>
+ */
+public class CompactContextEncoder implements ContextEncoder {
+    public static final CompactContextEncoder INSTANCE = new CompactContextEncoder();
+
+    private static final String NONE = "-";
+    // the defaults, as JSON text
+    private static final Map<String, String> DEFAULTS = Map.of(
+            "sun", "0",
+            "lamp", "0",
+            "atk", "false",
+            "seen", "\"" + NONE + "\"",
+            "heard", "\"" + NONE + "\"",
+            "hp", "100");
+
+    private CompactContextEncoder() {}
+
+    @Override
+    public void timeAndWeather(ContextSnapshot s, ContextSink o, Plugin plugin) {
+        ContextSnapshot.Environment env = s.environment();
+        if (env.underground()) {
+            o.add("t", "?");
+            o.add("w", "?");
+            return;
+        }
+        WorldEnvironment.State ws = env.world();
+        o.add("t", ws.time());
+        String w;
+        if (ws.thunder() && ws.storm())
+            w = "storm";
+        else if (ws.storm())
+            w = env.snow() ? "snow" : "rain";
+        else
+            w = "clear";
+        o.add("w", w);
+    }
+
+    @Override
+    public void region(ContextSnapshot s, ContextSink o) {
+        if (s.region() != null) {
+            o.add("r", s.region().name());
+            if (!s.region().desc().isEmpty())
+                o.add("rd", s.region().desc());
+        }
+    }
+
+    @Override
+    public void waypoint(ContextSnapshot s, ContextSink o) {
+        var wp = s.waypoint();
+        if (wp != null) {
+            o.add(wp.at() ? "at" : "near", wp.name());
+            o.add(wp.at() ? "atd" : "neard", wp.desc());
+        }
+    }
+
+    @Override
+    public void players(ContextSnapshot s, ContextSink o) {
+        if (s.nearbyPlayers() != null)
+            o.addStrings("p", s.nearbyPlayers());
+    }
+
+    @Override
+    public void light(ContextSnapshot s, ContextSink o) {
+        ContextSnapshot.Environment env = s.environment();
+        boolean lit = env.totalLight() > 0;
+        o.add("sun", lit ? env.skyLight() : 0);
+        o.add("lamp", lit ? env.blockLight() : 0);
+    }
+
+    @Override
+    public void world(ContextSnapshot s, ContextSink o) {
+        o.add("wld", s.world());
+    }
+
+    @Override
+    public void combat(ContextSnapshot s, ContextSink o, Plugin plugin, String name) {
+        ContextSnapshot.Combat c = s.combat();
+        if (c.recentlyAttacked() != null) {
+            if (c.recentlyAttacked())
+                o.add("atk", c.attacker());
+            else
+                o.add("atk", false);
+        }
+        if (c.seen() != null) {
+            o.add("seen", c.seen());
+        } else if (c.heard() != null) {
+            o.add("heard", c.heard());
+        } else {
+            o.add("seen", NONE);
+            o.add("heard", NONE);
+        }
+        ContextSnapshot.SentinelInfo d = c.sentinel();
+        if (d != null) {
+            o.add("cmb", Math.max(0, d.timeSinceAttack() / 20));
+            if (d.guarding() != null)
+                o.add("guard", d.guarding());
+            o.add("hp", d.health() >= 99.0 ? 100 : (int) d.health());
+        }
+    }
+
+    @Override
+    public void inventory(ContextSnapshot s, ContextSink o) {
+        if (s.inventory() != null)
+            o.addObject("inv", s.inventory());
+    }
+
+    @Override
+    public boolean isDefault(String key, String json) {
+        return json.equals(DEFAULTS.get(key));
+    }
+}
@@ -0,0 +1,268 @@
+package org.pale.gemininpc;
+
+import org.bukkit.Location;
+import org.pale.gemininpc.utils.Json;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.function.Supplier;
+
+/**
+ * Builds an NPC's context incrementally. There are two halves to this.
+ * <p>
+ * On the main thread, the sections of the context which are costly to capture - the region, the
+ * nearby waypoint, the players and the inventory - keep their last value and are only captured
+ * again when they've been marked dirty: by moving to another block, by a scan for nearby entities,
+ * by events which change the inventory and so on. In case we miss something, a value is also
+ * recaptured if it's more than a few seconds old. The environment and combat data depend on
+ * the time, so they're captured every time (they're cheap).
+ * <p>
+ * On the request thread, each part of the context JSON is only built if the snapshot value it
+ * comes from has changed since the last request, and only the changed keys within it are sent.
+ * The prompt is written as JSON text straight into a reused buffer (see {@link #writePrompt}),
+ * so the work - and the garbage - is in proportion to what changed. A changed object value, such
+ * as the region or the inventory, is sent whole rather than as a nested diff.
+ */
+public class ContextBuilder {
+    private static final long MAX_AGE = 10000;   // milliseconds before a cached section is recaptured anyway
+
+    /**
+     * A cached section of the context on the main thread.
+     * @param <T> the type of the captured value
+     */
+    public static class Section<T> {
+        private T value;
+        private boolean dirty = true;
+        private long when;
+
+        /**
+         * Get the value, capturing it again first if it's dirty or stale.
+         * @param capture how to capture it
+         * @return the value, which may be null
+         */
+        T get(Supplier<T> capture) {
+            long now = System.currentTimeMillis();
+            if (dirty || now - when > MAX_AGE) {
+                value = capture.get();
+                dirty = false;
+                when = now;
+            }
+            return value;
+        }
+
+        public void invalidate() {
+            dirty = true;
+        }
+    }
+
+    final Section<ContextSnapshot.RegionInfo> region = new Section<>();
+    final Section<ContextSnapshot.WaypointInfo> waypoint = new Section<>();
+    final Section<List<String>> players = new Section<>();
+    final Section<SortedMap<String, Integer>> inventory = new Section<>();
+
+    // the block we were in at the last capture
+    private Location lastBlock = null;
+
+    /**
+     * Tell the builder where we are now. If we're in a different block from last time, the
+     * sections which depend on position are marked dirty.
+     * @param loc the NPC's location
+     */
+    void moved(Location loc) {
+        Location blk = loc.getBlock().getLocation();
+        if (!blk.equals(lastBlock)) {
+            lastBlock = blk;
+            region.invalidate();
+            waypoint.invalidate();
+        }
+    }
+
+    // The parts of the JSON, in the order they appear in the full context. Each is built from one
+    // value in the snapshot.
+    private static final int TIME_AND_WEATHER = 0, REGION = 1, WAYPOINT = 2, PLAYERS = 3,
+            LIGHT = 4, WORLD = 5, COMBAT = 6, INVENTORY = 7, PARTS = 8;
+
+    private ContextSnapshot prevSnap = null;   // the last snapshot sent
+    // For each part, the keys we last sent and their values as JSON text - and a spare map which
+    // gets swapped in next time, so we don't make new ones on every request.
+    @SuppressWarnings("unchecked")
+    private Map<String, String>[] prevParts = new Map[PARTS];
+    @SuppressWarnings("unchecked")
+    private Map<String, String>[] spareParts = new Map[PARTS];
+
+    // reused from request to request: the prompt being written, and one value in it
+    private final StringBuilder buf = new StringBuilder(1024);
+    private final StringBuilder value = new StringBuilder(128);
+    private final PartWriter writer = new PartWriter();
+
+    {
+        for (int i = 0; i < PARTS; i++) {
+            prevParts[i] = new HashMap<>();
+            spareParts[i] = new HashMap<>();
+        }
+    }
+
+    /**
+     * Write the prompt for a request - the context, leaving out anything which hasn't changed
+     * since the last one, followed by the input. The JSON text is written straight into a buffer
+     * kept for the purpose, with no JsonObjects built along the way. Called on the request thread;
+     * the NPC's mailbox makes sure only one runs at a time.
+     * @param snap   the snapshot captured on the main thread
+     * @param enc    the context encoding
+     * @param plugin the plugin, for the standard texts
+     * @param name   the NPC's name
+     * @param input  the input text
+     * @return the prompt, as {"context":{...},"input":"..."}
+     */
+    public synchronized String writePrompt(ContextSnapshot snap, ContextEncoder enc, Plugin plugin,
+                                           String name, String input) {
+        ContextSnapshot p = prevSnap;
+        PartWriter w = writer;
+        w.enc = enc;
+        w.full = p == null;     // a full context, so the model can assume the defaults
+        w.first = true;
+        buf.setLength(0);
+        buf.append("{\"context\":{");
+        if (w.begin(TIME_AND_WEATHER, snap.environment(), p == null ? null : p.environment()))
+            enc.timeAndWeather(snap, w, plugin);
+        if (w.begin(REGION, snap.region(), p == null ? null : p.region()))
+            enc.region(snap, w);
+        if (w.begin(WAYPOINT, snap.waypoint(), p == null ? null : p.waypoint()))
+            enc.waypoint(snap, w);
+        if (w.begin(PLAYERS, snap.nearbyPlayers(), p == null ? null : p.nearbyPlayers()))
+            enc.players(snap, w);
+        if (w.begin(LIGHT, snap.environment(), p == null ? null : p.environment()))
+            enc.light(snap, w);
+        if (w.begin(WORLD, snap.world(), p == null ? null : p.world()))
+            enc.world(snap, w);
+        if (w.begin(COMBAT, snap.combat(), p == null ? null : p.combat()))
+            enc.combat(snap, w, plugin, name);
+        if (w.begin(INVENTORY, snap.inventory(), p == null ? null : p.inventory()))
+            enc.inventory(snap, w);
+        w.end();
+        buf.append("},\"input\":");
+        Json.quote(buf, input);
+        buf.append('}');
+        prevSnap = snap;
+        return buf.toString();
+    }
+
+    /**
+     * Writes the keys of one part of the context into the buffer, if they're different from what
+     * we sent last time. Each value is written into a scratch buffer first and compared with the
+     * previous text for that key, so an unchanged value costs no allocation at all.
+     */
+    private class PartWriter implements ContextSink {
+        ContextEncoder enc;
+        boolean full;       // writing a full context
+        boolean first;      // nothing written into the context object yet
+        private int index = -1;
+        private Map<String, String> prev, cur;
+
+        /**
+         * Start a part of the context.
+         * @return false if its snapshot value hasn't changed, so it needn't be built at all
+         */
+        boolean begin(int i, Object v, Object prevValue) {
+            end();
+            if (!full && Objects.equals(v, prevValue))
+                return false;
+            index = i;
+            prev = prevParts[i];
+            cur = spareParts[i];
+            cur.clear();
+            return true;
+        }
+
+        /**
+         * Finish the part being written, if any - what we've just written becomes the previous
+         * values for next time.
+         */
+        void end() {
+            if (index >= 0) {
+                spareParts[index] = prev;
+                prevParts[index] = cur;
+                index = -1;
+            }
+        }
+
+        /**
+         * Write the value in the scratch buffer under the key, if it's changed.
+         */
+        private void put(String key) {
+            String old = full ? null : prev.get(key);
+            if (old != null && old.contentEquals(value)) {
+                cur.put(key, old);
+                return;
+            }
+            String v = value.toString();
+            cur.put(key, v);
+            if (full && enc.isDefault(key, v))
+                return;
+            if (!first)
+                buf.append(',');
+            first = false;
+            Json.quote(buf, key);
+            buf.append(':').append(v);
+        }
+
+        public void add(String key, String v) {
+            value.setLength(0);
+            Json.quote(value, v);
+            put(key);
+        }
+
+        public void add(String key, long v) {
+            value.setLength(0);
+            value.append(v);
+            put(key);
+        }
+
+        public void add(String key, boolean v) {
+            value.setLength(0);
+            value.append(v);
+            put(key);
+        }
+
+        public void addStrings(String key, List<String> values) {
+            value.setLength(0);
+            value.append('[');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0)
+                    value.append(',');
+                Json.quote(value, values.get(i));
+            }
+            value.append(']');
+            put(key);
+        }
+
+        public void addObject(String key, Map<String, ?> values) {
+            value.setLength(0);
+            value.append('{');
+            for (var e : values.entrySet()) {
+                if (value.length() > 1)
+                    value.append(',');
+                Json.quote(value, e.getKey());
+                value.append(':');
+                if (e.getValue() instanceof Number n)
+                    value.append(n);
+                else
+                    Json.quote(value, (String) e.getValue());
+            }
+            value.append('}');
+            put(key);
+        }
+    }
+
+    /**
+     * Forget what we last sent, so the next context is sent in full - for when the chat is reset.
+     */
+    synchronized void forgetSent() {
+        prevSnap = null;
+        for (Map<String, String> m : prevParts)
+            m.clear();
+    }
+}
@@ -0,0 +1,75 @@
+package org.pale.gemininpc;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Turns the parts of a context snapshot into JSON. There are two encodings: the verbose one, with
+ * readable keys and values, and the compact one (see {@link CompactContextEncoder}) which saves
+ * input tokens at the cost of needing its schema described in the common template. Which is used
+ * is set by "context-encoding" in the main section of the config.
+ * <p>
+ * Each method writes one part of the context to a sink; ContextBuilder builds only the parts
+ * which have changed.
+ */
+public interface ContextEncoder {
+    void timeAndWeather(ContextSnapshot s, ContextSink o, Plugin plugin);
+
+    void region(ContextSnapshot s, ContextSink o);
+
+    void waypoint(ContextSnapshot s, ContextSink o);
+
+    void players(ContextSnapshot s, ContextSink o);
+
+    void light(ContextSnapshot s, ContextSink o);
+
+    void world(ContextSnapshot s, ContextSink o);
+
+    void combat(ContextSnapshot s, ContextSink o, Plugin plugin, String name);
+
+    void inventory(ContextSnapshot s, ContextSink o);
+
+    /**
+     * Can this value be left out because the model can assume it? Only done when sending a full
+     * context, since in a delta a missing key means "unchanged".
+     * @param key  the key
+     * @param json the value, as JSON text
+     * @return true if it's the default
+     */
+    default boolean isDefault(String key, String json) {
+        return false;
+    }
+
+    /**
+     * Remove anything which the model can assume from a full context.
+     * @param o the full context
+     */
+    default void omitDefaults(JsonObject o) {
+        o.entrySet().removeIf(e -> isDefault(e.getKey(), e.getValue().toString()));
+    }
+
+    /**
+     * The readable encoding, with the keys we've always used.
+     */
+    ContextEncoder VERBOSE = new ContextEncoder() {
+        public void timeAndWeather(ContextSnapshot s, ContextSink o, Plugin plugin) { s.appendTimeAndWeather(o, plugin); }
+        public void region(ContextSnapshot s, ContextSink o) { s.appendRegion(o); }
+        public void waypoint(ContextSnapshot s, ContextSink o) { s.appendWaypoint(o); }
+        public void players(ContextSnapshot s, ContextSink o) { s.appendPlayers(o); }
+        public void light(ContextSnapshot s, ContextSink o) { s.appendLight(o); }
+        public void world(ContextSnapshot s, ContextSink o) { o.add("world", s.world()); }
+        public void combat(ContextSnapshot s, ContextSink o, Plugin plugin, String name) { s.appendCombatData(o, plugin, name); }
+        public void inventory(ContextSnapshot s, ContextSink o) { s.appendInventory(o); }
+    };
+
+    /**
+     * @param name the name from the config - "verbose" or "compact"
+     * @return the encoder
+     */
+    static ContextEncoder forName(String name) {
+        if (name.equalsIgnoreCase("compact"))
+            return CompactContextEncoder.INSTANCE;
+        if (!name.equalsIgnoreCase("verbose"))
+            Plugin.warn("Unknown context encoding " + name + ", using verbose");
+        return VERBOSE;
+    }
+}
@@ -0,0 +1,60 @@
+package org.pale.gemininpc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where a {@link ContextEncoder} writes the parts of the context. There are two of these: one
+ * which builds a JsonObject (see {@link #of(JsonObject)}) for the places which want a tree, and
+ * the prompt writer in ContextBuilder, which writes the JSON text straight into a buffer.
+ */
+public interface ContextSink {
+    void add(String key, String value);
+
+    void add(String key, long value);
+
+    void add(String key, boolean value);
+
+    /**
+     * @param values written as an array of strings
+     */
+    void addStrings(String key, List<String> values);
+
+    /**
+     * @param values written as an object; each value must be a String or a Number
+     */
+    void addObject(String key, Map<String, ?> values);
+
+    /**
+     * @param o the object to add the keys to
+     * @return a sink which adds everything to a JsonObject
+     */
+    static ContextSink of(JsonObject o) {
+        return new ContextSink() {
+            public void add(String key, String value) { o.addProperty(key, value); }
+            public void add(String key, long value) { o.addProperty(key, value); }
+            public void add(String key, boolean value) { o.addProperty(key, value); }
+
+            public void addStrings(String key, List<String> values) {
+                JsonArray a = new JsonArray();
+                for (String s : values)
+                    a.add(s);
+                o.add(key, a);
+            }
+
+            public void addObject(String key, Map<String, ?> values) {
+                JsonObject obj = new JsonObject();
+                values.forEach((k, v) -> {
+                    if (v instanceof Number n)
+                        obj.addProperty(k, n);
+                    else
+                        obj.addProperty(k, (String) v);
+                });
+                o.add(key, obj);
+            }
+        };
+    }
+}
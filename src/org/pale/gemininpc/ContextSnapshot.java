@@ -0,0 +1,228 @@
+package org.pale.gemininpc;
+
+import com.google.gson.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * An immutable snapshot of everything the context sent to the AI is built from. It's captured on
+ * the main thread by {@link GeminiNPCTrait#captureContext()} - which only reads values, so it's
+ * quick - and turned into JSON on the request thread, which never touches the world at all.
+ *
+ * @param environment   time, weather and light
+ * @param region        the JCFUtils region we're in, or null
+ * @param waypoint      the nearest of our waypoints, or null if none is near
+ * @param nearbyPlayers the names of players quite close to us, or null if no real players are about
+ * @param combat        attacks, monsters and Sentinel data
+ * @param inventory     how many of each material we're carrying, or null if we're carrying nothing
+ * @param world         the world name
+ */
+public record ContextSnapshot(Environment environment,
+                              RegionInfo region,
+                              WaypointInfo waypoint,
+                              List<String> nearbyPlayers,
+                              Combat combat,
+                              SortedMap<String, Integer> inventory,
+                              String world) {
+
+    /**
+     * @param underground true if there's no skylight, in which case we don't know the time or weather
+     * @param world       the time and weather in the world, shared by all the NPCs in it
+     * @param snow        true if any storm here would be snow
+     */
+    public record Environment(boolean underground, WorldEnvironment.State world,
+                              boolean snow, int skyLight, int blockLight, int totalLight) {}
+
+    public record RegionInfo(String name, String desc) {}
+
+    /**
+     * @param at true if we're at the waypoint rather than just near it
+     */
+    public record WaypointInfo(String name, String desc, boolean at) {}
+
+    /**
+     * @param recentlyAttacked null if there's nothing to say about attacks, otherwise whether we
+     *                         were attacked within the notification duration
+     * @param attacker         the name of whoever attacked us
+     * @param seen             the nearest monster we've recently seen, or null
+     * @param heard            the nearest monster we've recently heard, or null
+     * @param sentinel         Sentinel data, or null if we're not a Sentinel
+     */
+    public record Combat(Boolean recentlyAttacked, String attacker, String seen, String heard,
+                         SentinelInfo sentinel) {}
+
+    /**
+     * @param timeSinceAttack in ticks
+     * @param health          percentage
+     */
+    public record SentinelInfo(long timeSinceAttack, String guarding, double health) {
+        /**
+         * @return this, with the time since the attack and the health rounded to what the prompt
+         * says - whole minutes, whole seconds or "now", and a whole percentage - so that it
+         * doesn't change the response cache key every tick.
+         */
+        SentinelInfo asShown() {
+            long t;
+            if (timeSinceAttack > 1200)
+                t = timeSinceAttack / 1200 * 1200 + 1;      // "N minutes ago"
+            else if (timeSinceAttack > 0)
+                t = Math.max(1, timeSinceAttack / 20 * 20); // "N seconds ago"
+            else
+                t = 0;                                      // in combat now
+            return new SentinelInfo(t, guarding, health >= 99.0 ? 100 : (int) health);
+        }
+    }
+
+    /**
+     * Build the full context JSON object in the verbose encoding.
+     * @param plugin the plugin, for the standard texts
+     * @param name   the NPC's name
+     * @return the context
+     */
+    public JsonObject toJson(Plugin plugin, String name) {
+        return toJson(ContextEncoder.VERBOSE, plugin, name);
+    }
+
+    /**
+     * Build the full context JSON object.
+     * @param enc    the encoding to use
+     * @param plugin the plugin, for the standard texts
+     * @param name   the NPC's name
+     * @return the context
+     */
+    public JsonObject toJson(ContextEncoder enc, Plugin plugin, String name) {
+        JsonObject root = new JsonObject();
+        ContextSink o = ContextSink.of(root);
+        enc.timeAndWeather(this, o, plugin);
+        enc.region(this, o);
+        enc.waypoint(this, o);
+        enc.players(this, o);
+        enc.light(this, o);
+        enc.world(this, o);
+        enc.combat(this, o, plugin, name);
+        enc.inventory(this, o);
+        enc.omitDefaults(root);
+        return root;
+    }
+
+    // The parts of the context in the verbose encoding - see ContextEncoder.VERBOSE.
+
+    void appendTimeAndWeather(ContextSink root, Plugin plugin) {
+        Environment env = environment;
+        if (env.underground) {
+            root.add("time", plugin.getText("no-skylight-time"));
+            root.add("weather", plugin.getText("no-skylight-weather"));
+        } else {
+            root.add("time", env.world.time());
+            root.add("weather", env.snow ? env.world.snowWeather() : env.world.weather());
+        }
+    }
+
+    void appendRegion(ContextSink root) {
+        // JCFUtils region data
+        if (region != null) {
+            Map<String, String> regionObj = new LinkedHashMap<>();
+            regionObj.put("name", region.name);
+            if (!region.desc.isEmpty()) {
+                regionObj.put("description", region.desc);
+            }
+            root.addObject("region", regionObj);
+        }
+    }
+
+    void appendWaypoint(ContextSink root) {
+        if (waypoint != null) {
+            if (waypoint.at) {
+                root.add("location", waypoint.name);
+                root.add("location description", waypoint.desc);
+            } else {
+                root.add("nearby location", waypoint.name);
+                root.add("nearby location description", waypoint.desc);
+            }
+        }
+    }
+
+    void appendPlayers(ContextSink root) {
+        // who is nearby?
+        if (nearbyPlayers != null) {
+            root.addStrings("nearbyPlayers", nearbyPlayers);
+        }
+    }
+
+    void appendLight(ContextSink root) {
+        // light conditions?
+        if (environment.totalLight > 0) {
+            root.add("light from the sun", String.format("%d/15", environment.skyLight));
+            root.add("light from lamps", String.format("%d/15", environment.blockLight));
+        } else {
+            root.add("light from the sun", "none");
+            root.add("light from lamps", "none");
+        }
+    }
+
+    void appendInventory(ContextSink root) {
+        if (inventory != null) {
+            root.addObject("inventory", inventory);
+        }
+    }
+
+    /**
+     * @return a copy of this snapshot with the time of day taken out, for keying the response
+     * cache - it's nearly always different, and rarely matters. A Sentinel's time since its last
+     * fight is counted in ticks, so that's rounded to what the prompt shows.
+     */
+    public ContextSnapshot withoutTime() {
+        Environment e = environment;
+        Combat c = combat;
+        if (c != null && c.sentinel != null)
+            c = new Combat(c.recentlyAttacked, c.attacker, c.seen, c.heard, c.sentinel.asShown());
+        return new ContextSnapshot(new Environment(e.underground, e.world.withoutTime(), e.snow,
+                e.skyLight, e.blockLight, e.totalLight), region, waypoint, nearbyPlayers, c, inventory, world);
+    }
+
+    void appendCombatData(ContextSink root, Plugin plugin, String name) {
+        Combat c = combat;
+        if (c.recentlyAttacked != null) {
+            if (c.recentlyAttacked) {
+                root.add("attacked", String.format("%s was recently attacked by %s", name, c.attacker));
+            } else {
+                root.add("attacked", String.format("%s has not been attacked recently.", name));
+            }
+        }
+
+        if (c.seen != null) {
+            root.add("recently seen", c.seen);
+        } else if (c.heard != null) {
+            root.add("recently heard", c.heard);
+        } else {
+            root.add("recently seen", "no monsters");
+            root.add("recently heard", "no monsters");
+        }
+
+        SentinelInfo d = c.sentinel;
+        if (d != null) {
+            // first, how long ago did we see combat
+            double t = d.timeSinceAttack / 20.0; // convert to seconds
+            if (t > 60) {
+                root.add("combat", String.format("%d minutes ago", (int) t / 60));
+            } else if (t > 0) {
+                root.add("combat", String.format("%d seconds ago", (int) t));
+            } else {
+                root.add("combat", plugin.getText("in-combat-now"));
+            }
+            // now, are we guarding someone?
+            if (d.guarding != null)
+                root.add("guarding player", d.guarding);
+            // health.
+            double h = d.health;
+            if (h >= 99.0) {
+                root.add("health", "maximum");
+            } else {
+                root.add("health", String.format("%d%%", (int) h));
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.pale.gemininpc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent context snapshots sent to the model, so we can compare how big they are
+ * in the verbose and compact encodings - see the "contexttokens" command. Tokens are estimated at
+ * four characters each, as for the response cache; it's the comparison that matters.
+ */
+public class ContextTokenReport {
+    private static final int MAX_RECORDED = 200;
+
+    private record Recorded(ContextSnapshot snap, String name) {}
+
+    private final ArrayDeque<Recorded> recorded = new ArrayDeque<>();
+
+    /**
+     * Record a snapshot. Called from the request threads.
+     */
+    public synchronized void record(ContextSnapshot snap, String name) {
+        if (recorded.size() >= MAX_RECORDED)
+            recorded.removeFirst();
+        recorded.addLast(new Recorded(snap, name));
+    }
+
+    /**
+     * Encode every recorded context in full both ways and compare the sizes.
+     * @param plugin the plugin
+     * @return lines of report
+     */
+    public List<String> report(Plugin plugin) {
+        List<Recorded> recs;
+        synchronized (this) {
+            recs = List.copyOf(recorded);
+        }
+        List<String> out = new ArrayList<>();
+        if (recs.isEmpty()) {
+            out.add("No contexts recorded yet");
+            return out;
+        }
+        long verbose = 0, compact = 0;
+        for (Recorded r : recs) {
+            verbose += r.snap.toJson(ContextEncoder.VERBOSE, plugin, r.name).toString().length();
+            compact += r.snap.toJson(CompactContextEncoder.INSTANCE, plugin, r.name).toString().length();
+        }
+        out.add("Contexts recorded: " + recs.size() + " (encoding in use: "
+                + (plugin.contextEncoder == ContextEncoder.VERBOSE ? "verbose" : "compact") + ")");
+        out.add(String.format("  Verbose: %d chars, estimated %d tokens each", verbose / recs.size(), verbose / 4 / recs.size()));
+        out.add(String.format("  Compact: %d chars, estimated %d tokens each", compact / recs.size(), compact / 4 / recs.size()));
+        out.add(String.format("  Compact saves %.0f%%", 100.0 * (verbose - compact) / verbose));
+        out.add("  (Token counts are estimates at 4 chars per token; see \"tokens\" for the real usage.)");
+        return out;
+    }
+}
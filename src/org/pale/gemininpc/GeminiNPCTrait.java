@@ -1,7 +1,6 @@
 package org.pale.gemininpc;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
@@ -13,13 +12,8 @@ import net.citizensnpcs.api.trait.TraitName;
 import net.citizensnpcs.api.util.DataKey;
 
 import net.citizensnpcs.trait.ShopTrait;
-import net.citizensnpcs.trait.shop.ItemAction;
-import net.citizensnpcs.trait.shop.NPCShopAction;
 import org.bukkit.*;
-import org.bukkit.block.Biome;
-import org.bukkit.block.Block;
 import org.bukkit.entity.LivingEntity;
-import org.bukkit.entity.Monster;
 import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
@@ -31,7 +25,11 @@ import org.bukkit.entity.Player;
 import org.mcmonkey.sentinel.SentinelTrait;
 
 import org.pale.gemininpc.ai.Chat;
+import org.pale.gemininpc.ai.Lane;
+import org.pale.gemininpc.ai.Mailbox;
 import org.pale.gemininpc.ai.Persona;
+import org.pale.gemininpc.ai.Quotas;
+import org.pale.gemininpc.ai.ResponseCache;
 import org.pale.gemininpc.command.CallInfo;
 import org.pale.gemininpc.plugininterfaces.Sentinel;
 import org.pale.gemininpc.utils.ItemManipulation;
@@ -42,9 +40,7 @@ import org.pale.gemininpc.waypoints.Waypoint;
 import org.pale.gemininpc.waypoints.Waypoints;
 
 import org.pale.jcfutils.region.Region;
-import org.pale.jcfutils.region.RegionManager;
 
-import static org.pale.gemininpc.utils.Json.getDifferences;
 
 
 //This is your trait that will be applied to a npc using the /trait mytraitname command.
@@ -119,19 +115,35 @@ public class GeminiNPCTrait extends Trait {
 
     static final int MAXTICKINT = 10;   // how many ticks it takes before an update
 
+    // reused every tick to tell the chatter index where we are, so we don't make a new Location
+    private final Location indexLoc = new Location(null, 0, 0, 0);
+
     // players which we have recently seen hang around in this for a while. The message type is "object"
     // because we don't care what it is - it's not used.
     final TransientNotificationMap<Object> recentlySeenPlayers = new TransientNotificationMap<>(60);
 
+    // players who have recently spoken to us as the main listener; they're probably still talking to us
+    final TransientNotificationMap<Object> recentPartners = new TransientNotificationMap<>(60);
+
     // throttles the infrequent update on individual NPCs
     final TransientNotification<Object> updateInfrequentRecently = new TransientNotification<>(60);
 
-    // The "chat" part of the GenAI api is synchronous, so we use a queue and a thread to
-    // make it non-blocking. Requests are sent to the AI in a thread, and when the response
-    // is returned it is added to this queue. We don't need to store the player, because the
-    // NPC will just "say" the response to all players in range. The queue is read inside the
-    // update method by polling - not ideal, but it's very quick and the update infrequent.
-    final ConcurrentLinkedQueue<Chat.Response> queue = new ConcurrentLinkedQueue<>();
+    // The "chat" part of the GenAI api is synchronous, so we use the plugin's request executor to
+    // make it non-blocking. Requests are sent to the AI on a worker thread, and when the response
+    // is returned it is handed to the plugin's response dispatcher, which calls deliverResponse on
+    // the main thread. We don't need to store the player, because the NPC will just "say" the
+    // response to all players in range.
+
+    // Requests to the AI go through this, so only one is ever running for this NPC at a time and
+    // anything arriving in the meantime is merged into a single follow-up request.
+    final Mailbox<Input> mailbox = new Mailbox<>(this::processRequests);
+
+    // an input to the AI waiting in the mailbox, with the lane it came in on, the player it came
+    // from (null for events and other NPCs), whether it's something a player said (which is never
+    // answered from the cache, whatever the lane), the context captured on the main thread when
+    // it arrived and - for remarks made in an ambient batch - the response already got for it.
+    record Input(String text, Lane lane, String player, boolean speech, ContextSnapshot context,
+                 Chat.Response response) {}
 
     // this is the Chat API object - it's created the first time you call the respondTo method,
     // or when it's called after you change the persona (which sets this to zero)
@@ -155,7 +167,17 @@ public class GeminiNPCTrait extends Trait {
             return;
         }
         updateInfrequentRecently.set(null);
-        respondTo(null, "(you look around)");
+        respondTo(null, "(you look around)", Lane.AMBIENT);
+    }
+
+    /**
+     * @return true if an infrequent update would do something now - we haven't had one recently,
+     * there's a player near enough to hear it, and we're not busy with another request. Used by
+     * the ambient batcher to find NPCs to go in a batch.
+     */
+    boolean isDueForAmbient() {
+        return !updateInfrequentRecently.active() && mailbox.isIdle()
+                && nearbyPlayers.stream().anyMatch(p -> p.d < 12);
     }
 
     // we can set one of these up to be called when navigation completes (or fails)
@@ -224,6 +246,9 @@ public class GeminiNPCTrait extends Trait {
     // Called every tick
     @Override
     public void run() {
+        Entity e = npc.getEntity();
+        if (e != null)
+            plugin.chatterIndex.moved(npc, e.getLocation(indexLoc));
         if (tickint++ == MAXTICKINT) { // to reduce CPU usage - this is about 0.5Hz.
             update();
             tickint = 0;
@@ -278,7 +303,7 @@ public class GeminiNPCTrait extends Trait {
      * Called by the plugin when we made a kill
      */
     void onKill(String mobname){
-        respondTo(null, String.format("(%s killed a %s)", npc.getFullName(), mobname));
+        respondTo(null, String.format("(%s killed a %s)", npc.getFullName(), mobname), Lane.EVENT);
     }
 
     /**
@@ -309,7 +334,7 @@ public class GeminiNPCTrait extends Trait {
             HashMap<Integer, ItemStack> leftover = inv.addItem(st);
             if (!leftover.isEmpty()) {
                 // we couldn't add the item to the NPC. Send a message and give up.
-                respondTo(p, "(tries to give you " + st.getType().name() + " but you have no room)");
+                respondTo(p, "(tries to give you " + st.getType().name() + " but you have no room)", Lane.CHAT);
                 return;
             }
         }
@@ -323,8 +348,10 @@ public class GeminiNPCTrait extends Trait {
             playerStack.setAmount(newAmount);
         }
 
+        contextBuilder.inventory.invalidate();
+
         // and send the message to the AI
-        respondTo(p, "(gives you " + st.getType().name() + ")");
+        respondTo(p, "(gives you " + st.getType().name() + ")", Lane.CHAT);
     }
 
     // this timer controls responses to purchases. When a purchase happens, it is set to a few seconds in the
@@ -348,7 +375,7 @@ public class GeminiNPCTrait extends Trait {
                 }
                 String itemsString = String.join(", ", items);
                 // send the response to the AI
-                respondTo(p, "(" + p.getDisplayName() + " bought " + itemsString + " from you)");
+                respondTo(p, "(" + p.getDisplayName() + " bought " + itemsString + " from you)", Lane.CHAT);
             }
             itemsBoughtByPlayer.clear(); // clear the map
             purchaseTimer = 0; // stop the timer
@@ -372,6 +399,7 @@ public class GeminiNPCTrait extends Trait {
                 itemsBought.put(s.getType().name(), s.getAmount());
             }
         }
+        contextBuilder.inventory.invalidate();
         // reset the timer to n milliseconds in the future
         purchaseTimer = System.currentTimeMillis() + Plugin.getInstance().purchaseTimeout;
     }
@@ -469,7 +497,7 @@ public class GeminiNPCTrait extends Trait {
                     outmsg = ChatColor.AQUA + "[" + npc.getFullName() + " -> " + playerName + "] " + ChatColor.WHITE + response;
                 p.p.sendMessage(outmsg);
             }
-        } else {
+        } else if (action == null) {
             Plugin.log("null msg");
         }
         if (action != null && !action.isBlank()) {
@@ -482,18 +510,20 @@ public class GeminiNPCTrait extends Trait {
     }
 
     /**
-     * This is called every tick, and is where we do the work. We check the queue for messages,
-     * and if there are any, we send them to the players in range.
+     * Called on the main thread by the response dispatcher when a response (or a chunk of a
+     * streaming response) from the AI arrives - we speak it to the players in range.
+     */
+    void deliverResponse(Chat.Response r) {
+        Plugin.log(npc.getName() +" returned JSON string is: " + r.toString());
+        processResponse(r);
+    }
+
+    /**
+     * This is called every few ticks, and is where we do the work - scanning for nearby entities,
+     * greeting players and so on.
      */
     private void update() {
         checkPurchaseTimer();   // check if we have a purchase timer that has expired, and if so, send the purchases to the AI.
-        // check the queue - if there are any messages, speak them.
-        while (!queue.isEmpty()) {
-            Chat.Response r = queue.poll();
-            // parse the response
-            Plugin.log(npc.getName() +" returned JSON string is: " + r.toString());
-            processResponse(r);
-        }
 
         updateNearbyEntities(NEARBY_ENTITIES_SCAN_DIST, NEARBY_ENTITIES_SCAN_DISTY);
         processGreet();
@@ -506,6 +536,13 @@ public class GeminiNPCTrait extends Trait {
         }
     }
 
+    /**
+     * @return the name we're known by in the token accounting - the name alone might not be unique
+     */
+    String tokenAccountName() {
+        return npc.getName() + "#" + npc.getId();
+    }
+
     /**
      * Get the system instructions string from the plugin, via the appropriate Persona, applying templates as necessary.
      * Only done when a chat is created!
@@ -541,10 +578,15 @@ public class GeminiNPCTrait extends Trait {
      * Set of nearby visible players and distances - empty if no nearby player is a real player.
      */
     Set<NearbyPlayer> nearbyPlayers = emptySet;
+    // reused by each scan for what the proximity grid finds
+    private final List<ProximityGrid.Tracked> nearbyScratch = new ArrayList<>();
+    // the names of the players quite close to us at the last scan, as capturePlayers gives them
+    private List<String> lastPlayerNames = null;
 
 
     /**
-     * Used to scan nearby entities for both players and mobs. Once a second should do it.
+     * Used to scan nearby entities for both players and mobs, from the plugin's proximity grid.
+     * Once a second should do it.
      * One result is the nearbyPlayers set, which will only have members IF one of the nearby
      * players is a real player and not an NPC to avoid wasting AI requests (if a tree falls in
      * the forest and there's no-one to hear it, does it make a sound? Here, it doesn't).
@@ -570,287 +612,187 @@ public class GeminiNPCTrait extends Trait {
 
         LivingEntity npcEntity = (LivingEntity) npc.getEntity();
 
-        for (Entity e : npc.getEntity().getNearbyEntities(d, dy, d)) {
-            if (e instanceof Player p) {
-                if (!CitizensAPI.getNPCRegistry().isNPC(e))
-                    nonNPCPresent = true;
-                if (npcEntity.hasLineOfSight(e)) {
-                    double dx = myLocation.getX() - p.getLocation().getX();
-                    double dz = myLocation.getZ() - p.getLocation().getZ();
-                    double dist = Math.sqrt(dx * dx + dz * dz);
-                    double disty = myLocation.getY() - p.getLocation().getY();
-                    r.add(new NearbyPlayer(p, dist, disty));
-                    if(debug)
-                        log_debug(String.format("%s scan ADDING %s (dist %.2f dy %.2f)",
-                                npc.getEntity().getName(), p.getDisplayName(), dist, disty));
-                }
-            } else if(e instanceof Monster m){
-                String mname = m.getName();
-                // should be same world because getNearbyEntities only returns entities in the same world
-                double dist = m.getLocation().distance(npc.getEntity().getLocation());
-                MonsterData nm = nearestMonster.get();
-                if (nm == null || dist < nm.dist) {
-                    nearestMonster.set(new MonsterData(mname, dist));
-                    if(debug)log_debug(String.format("%s detected monster %s (dist %.2f)",
-                            npc.getEntity().getName(), mname, dist));
-                    if(npcEntity.hasLineOfSight(m)){
-                        MonsterData nvm = nearestVisibleMonster.get();
-                        if (nvm == null || dist < nvm.dist) {
-                            nearestVisibleMonster.set(new MonsterData(mname, dist));
-                            if(debug)log_debug(String.format("%s detected visible monster %s (dist %.2f)",
-                                    npc.getEntity().getName(), m.getName(), dist));
-                        }
+        // from the plugin's sweep, rather than asking the world ourselves
+        List<ProximityGrid.Tracked> found = nearbyScratch;
+        plugin.proximity.findPlayers(myLocation, d, dy, found);
+        for (ProximityGrid.Tracked t : found) {
+            if (t.entity() == npcEntity)
+                continue;
+            Player p = (Player) t.entity();
+            if (!t.npc())
+                nonNPCPresent = true;
+            if (plugin.lineOfSight.hasLineOfSight(npc, npcEntity, myLocation, t)) {
+                double dx = myLocation.getX() - t.x();
+                double dz = myLocation.getZ() - t.z();
+                double dist = Math.sqrt(dx * dx + dz * dz);
+                double disty = myLocation.getY() - t.y();
+                r.add(new NearbyPlayer(p, dist, disty));
+                if(debug)
+                    log_debug(String.format("%s scan ADDING %s (dist %.2f dy %.2f)",
+                            npc.getEntity().getName(), p.getDisplayName(), dist, disty));
+            }
+        }
+        plugin.proximity.findMonsters(myLocation, d, dy, found);
+        for (ProximityGrid.Tracked t : found) {
+            Entity m = t.entity();
+            String mname = m.getName();
+            double dx = myLocation.getX() - t.x();
+            double ddy = myLocation.getY() - t.y();
+            double dz = myLocation.getZ() - t.z();
+            double dist = Math.sqrt(dx * dx + ddy * ddy + dz * dz);
+            MonsterData nm = nearestMonster.get();
+            if (nm == null || dist < nm.dist) {
+                nearestMonster.set(new MonsterData(mname, dist));
+                if(debug)log_debug(String.format("%s detected monster %s (dist %.2f)",
+                        npc.getEntity().getName(), mname, dist));
+                if(plugin.lineOfSight.hasLineOfSight(npc, npcEntity, myLocation, t)){
+                    MonsterData nvm = nearestVisibleMonster.get();
+                    if (nvm == null || dist < nvm.dist) {
+                        nearestVisibleMonster.set(new MonsterData(mname, dist));
+                        if(debug)log_debug(String.format("%s detected visible monster %s (dist %.2f)",
+                                npc.getEntity().getName(), mname, dist));
                     }
                 }
             }
         }
+        found.clear();
         // if there are no *real* players nearby, don't waste AI tokens on greeting.
         if (nonNPCPresent)
             nearbyPlayers = r;
         else
             nearbyPlayers = emptySet;
+        // the context only needs the players again if the names have changed
+        List<String> names = capturePlayers();
+        if (!Objects.equals(names, lastPlayerNames)) {
+            lastPlayerNames = names;
+            contextBuilder.players.invalidate();
+        }
         if(debug)log_debug("Nearby: "+String.join(",",nearbyPlayers.stream().map(p->p.p.getName()).toList()));
     }
 
     /**
-     * Add the inventory as a JSON array to a JsonObject, if we are carrying anything
+     * Part of the context capture - how many of each material we're carrying, or null if we're
+     * carrying nothing.
      */
-    private void appendInventory(JsonObject root) {
-        JsonArray arr = new JsonArray();
-        boolean isempty=true;
+    private SortedMap<String, Integer> captureInventory() {
         if (npc.getEntity() instanceof Player p) {
-            Inventory inv = p.getInventory();
-            ItemStack[] items = inv.getContents();
-            for (ItemStack item : items) {
-                if (item != null) {
-                    arr.add(item.getType().name());
-                    isempty = false;
-                }
-            }
+            return inventorySummary.summarise(p.getInventory());
         }
-        if(!isempty)
-            root.add("inventory",arr);
+        return null;
     }
 
 
 
     /**
-     * Part of the environment builder - append any combat data to a JsonObject
+     * Part of the context capture - any combat data. Extra data will be captured if this is a Sentinel.
      */
-    private void appendCombatData(JsonObject root) {
+    private ContextSnapshot.Combat captureCombatData() {
         Sentinel.SentinelData d = Plugin.getInstance().sentinelPlugin.makeData(npc);
 
+        Boolean recentlyAttacked = null;
+        String attacker = null;
         if(whenLastDamaged >= 0){
             // was this longer ago than a given duration?
             long lastDamageTime = (System.currentTimeMillis()-whenLastDamaged)/1000;
             if(lastDamageTime > plugin.attackNotificationDuration){
                 whenLastDamaged = -1;
-                root.addProperty("attacked", String.format("%s has not been attacked recently.",getNPC().getName()));
+                recentlyAttacked = false;
             } else {
-                root.addProperty("attacked", String.format("%s was recently attacked by %s",
-                        getNPC().getName(), whoDamagedBy.getName()));
+                recentlyAttacked = true;
+                attacker = whoDamagedBy.getName();
             }
         }
 
         MonsterData nm = nearestMonster.get();
         MonsterData nvm = nearestVisibleMonster.get();
-        if(nvm!=null) {
-            root.addProperty("recently seen", nvm.m);
-        } else if(nm!=null){
-            root.addProperty("recently heard", nm.m);
-        } else {
-            root.addProperty("recently seen", "no monsters");
-            root.addProperty("recently heard", "no monsters");
-        }
 
+        ContextSnapshot.SentinelInfo si = null;
         if (d != null) {
-            // first, how long ago did we see combat
-            double t = d.timeSinceAttack / 20.0; // convert to seconds
-            log_debug("Time since attack " + t);
-            if (t > 60) {
-                root.addProperty("combat", String.format("%d minutes ago", (int) t / 60));
-            } else if (t > 0) {
-                root.addProperty("combat", String.format("%d seconds ago", (int) t));
-            } else {
-                root.addProperty("combat", plugin.getText("in-combat-now"));
-            }
-            // now, are we guarding someone?
-            if (d.guarding != null)
-                root.addProperty("guarding player", d.guarding);
-            // health.
-            double h = d.health;
-            if (h >= 99.0) {
-                root.addProperty("health", "maximum");
-            } else {
-                root.addProperty("health", String.format("%d%%", (int) h));
-            }
+            log_debug("Time since attack " + d.timeSinceAttack / 20.0);
+            si = new ContextSnapshot.SentinelInfo(d.timeSinceAttack, d.guarding, d.health);
         }
+        return new ContextSnapshot.Combat(recentlyAttacked, attacker,
+                nvm == null ? null : nvm.m, nm == null ? null : nm.m, si);
     }
 
-    JsonObject prevContext = null;
-
-    private static Set<Biome> biomesFromStrings(List<String> s) {
-        return s.stream()
-                .map(b -> {
-                    try {
-                        return Registry.BIOME.get(new NamespacedKey(Plugin.getInstance(), b));
-                    } catch (IllegalArgumentException e) {
-                        Plugin.log("Unknown biome: " + b);
-                        return Biome.PLAINS;
-                    }
-                })
-                .collect(Collectors.toSet());
-    }
-
-    final Set<Biome> coldBiomes = biomesFromStrings(List.of(
-            "FROZEN_OCEAN", "DEEP_FROZEN_OCEAN", "SNOWY_BEACH", "SNOWY_PLAINS",
-            "SNOWY_SLOPES", "SNOWY_TAIGA"));
-
-    final Set<Biome> coldAbove100 = biomesFromStrings(List.of(
-            "WINDSWEPT_GRAVELLY_HILLS", "WINDSWEPT_HILLS", "WINDSWEPT_FOREST", "STONY_SHORE",
-            "DRIPSTONE_CAVES"
-    ));
+    // what we're carrying, for the context
+    final InventorySummary inventorySummary = new InventorySummary();
 
-    final Set<Biome> coldAbove160 = biomesFromStrings(List.of(
-            "TAIGA", "OLD_GROWTH_SPRUCE_TAIGA"
-    ));
-
-    final Set<Biome> coldAbove200 = biomesFromStrings(List.of(
-            "OLD_GROWTH_PINE_TAIGA"
-    ));
+    // our shop's price lists, if we're a shop
+    final ShopCatalogue shopCatalogue = new ShopCatalogue();
 
+    // keeps the parts of the context which haven't changed, and what we last sent
+    final ContextBuilder contextBuilder = new ContextBuilder();
 
     /**
-     * Get the context (environment, inventory etc.) as a JSON object, leaving out unchanged elements
+     * Capture everything the context is built from. This must be called on the main thread, since it
+     * reads the world, the NPC's inventory and the Sentinel trait; but it only reads values, leaving
+     * the formatting and serialisation to the request thread.
      *
-     * @return the context as a Json element, leaving out unchanged elements
+     * @return an immutable snapshot of the context
      */
-    private JsonElement getContext() {
+    ContextSnapshot captureContext() {
+        long start = System.nanoTime();
         Location loc = npc.getStoredLocation();
-        World w = loc.getWorld();
-
-        Block blk = loc.getBlock();
-
-        byte skyLight = blk.getLightFromSky();
-        byte blockLight = blk.getLightFromBlocks();
-        byte totalLight = blk.getLightLevel();
-
-        JsonObject root = new JsonObject();
+        World w = Objects.requireNonNull(loc.getWorld());
+
+        // light levels and whether it snows here, probably from the cache if we haven't moved
+        BlockSampleCache.Sample sample = plugin.blockSamples.get(loc.getBlock());
+        boolean underground = sample.skyLight() == 0;
+        WorldEnvironment.State ws = plugin.worldEnvironment.get(w);
+        var env = new ContextSnapshot.Environment(underground, ws,
+                !underground && ws.storm() && sample.snow(),
+                sample.skyLight(), sample.blockLight(), sample.totalLight());
+
+        // the rest only needs capturing again if it's changed
+        contextBuilder.moved(loc);
+        var snap = new ContextSnapshot(env,
+                contextBuilder.region.get(() -> captureRegion(loc)),
+                contextBuilder.waypoint.get(() -> captureWaypoint(loc)),
+                contextBuilder.players.get(this::capturePlayers),
+                captureCombatData(),
+                contextBuilder.inventory.get(this::captureInventory),
+                w.getName());
+        plugin.recordContextCapture(System.nanoTime() - start);
+        return snap;
+    }
 
-        if (skyLight == 0) {
-            root.addProperty("time", plugin.getText("no-skylight-time"));
-            root.addProperty("weather", plugin.getText("no-skylight-weather"));
-        } else {
-            long t = Objects.requireNonNull(w).getTime();
-            int hours = (int) ((t / 1000 + 6) % 24);
-            int minutes = (int) (60 * (t % 1000) / 1000);
-            String timeString = String.format("%02d:%02d", hours, minutes);
-            root.addProperty("time", timeString);
-
-            // I need to tell if it's snow or rain.
-            // this is a really rough method - it seems pretty impossible to do it properly.
-
-            boolean isSnow = isSnow(loc);
-
-            String weatherString = "clear";
-            if (timeString.equals("midnight") || timeString.equals("night"))
-                weatherString = "dark";
-            else if (timeString.equals("dawn") || timeString.equals("dusk"))
-                weatherString = "twilight";
-
-            if (w.isThundering() && w.hasStorm()) {
-                weatherString = "stormy and thundering";
-            } else if (w.hasStorm()) {
-                if (isSnow) {
-                    weatherString = "snowing";
-                } else {
-                    weatherString = "raining";
-                }
-            }
-            root.addProperty("weather", weatherString);
+    /**
+     * Part of the context capture - the JCFUtils region we're in, or null.
+     */
+    private ContextSnapshot.RegionInfo captureRegion(Location loc) {
+        Region region = plugin.regionCache.getSmallestRegion(loc);
+        if (region != null) {
+            return new ContextSnapshot.RegionInfo(region.name, region.desc);
         }
+        return null;
+    }
 
-        // add JCFUtils region data
-        RegionManager rm = RegionManager.getManager(w);
-        if (rm != null) {
-            Region region = rm.getSmallestRegion(loc);
-            if (region != null) {
-                JsonObject regionObj = new JsonObject();
-                regionObj.addProperty("name", region.name);
-                if(!region.desc.isEmpty()){
-                    regionObj.addProperty("description",region.desc);
-                }
-                root.add("region", regionObj);
-            }
-        }
+    /**
+     * Part of the context capture - the nearest of our waypoints, or null if none is near.
+     */
+    private ContextSnapshot.WaypointInfo captureWaypoint(Location loc) {
         var nearbyWp = waypoints.getNearWaypoint(loc, 100);
         if(nearbyWp!=null){
-            if(nearbyWp.distanceSquared() <16){
-                root.addProperty("location", nearbyWp.name());
-                root.addProperty("location description", nearbyWp.waypoint().desc);
-            } else {
-                root.addProperty("nearby location", nearbyWp.name());
-                root.addProperty("nearby location description", nearbyWp.waypoint().desc);
-            }
-        }
-
-
-
-        // who is nearby?
-        if(!nearbyPlayers.isEmpty()) {
-            JsonArray json = new JsonArray();
-
-            var st = nearbyPlayers.stream()
-                    .filter(p -> p.d < VERY_CLOSE_PLAYERS_DIST
-                            && p.dy < VERY_CLOSE_PLAYERS_DISTY)      // quite close
-                    .map(p -> ChatColor.stripColor(p.p.getDisplayName()));
-            for(var s : st.toList()){
-                json.add(s);
-            }
-            root.add("nearbyPlayers", json);
-        }
-
-        // light conditions?
-        if(totalLight>0){
-            root.addProperty("light from the sun", String.format("%d/15", skyLight));
-            root.addProperty("light from lamps", String.format("%d/15", blockLight));
-
-        } else {
-            root.addProperty("light from the sun", "none");
-            root.addProperty("light from lamps", "none");
+            return new ContextSnapshot.WaypointInfo(nearbyWp.name(), nearbyWp.waypoint().desc,
+                    nearbyWp.distanceSquared() < 16);
         }
-
-        root.addProperty("world", w.getName());
-
-        // now, add the combat data - extra data will also be added if this is a Sentinel
-        appendCombatData(root);
-        // and the inventory
-        appendInventory(root);
-
-        JsonObject diffs = getDifferences(prevContext,root);
-        prevContext = root;
-        return diffs;
+        return null;
     }
 
-    private boolean isSnow(Location loc) {
-        boolean isSnow = false;  // if stormy, is it snow or rain?
-        World w = loc.getWorld();
-        if (w == null) return false;
-        Biome b = w.getBiome(loc);
-
-        // get altitude of npc
-        double y = loc.getY();
-
-        if( coldBiomes.contains(b)) {
-            isSnow = true; // snow biome
-        } else if (coldAbove200.contains(b) && y > 200) {
-            isSnow = true; // above 200 in a cold biome
-        } else if (coldAbove160.contains(b) && y > 160) {
-            isSnow = true; // above 160 in a cold biome
-        } else if (coldAbove100.contains(b) && y > 100) {
-            isSnow = true; // above 100 in a cold biome
-        }
-        return isSnow;
+    /**
+     * Part of the context capture - the names of the players who are quite close, in order so
+     * the list only changes when they do, or null if no real players are about.
+     */
+    private List<String> capturePlayers() {
+        if(nearbyPlayers.isEmpty())
+            return null;
+        return nearbyPlayers.stream()
+                .filter(p -> p.d < VERY_CLOSE_PLAYERS_DIST
+                        && p.dy < VERY_CLOSE_PLAYERS_DISTY)      // quite close
+                .map(p -> ChatColor.stripColor(p.p.getDisplayName()))
+                .sorted()
+                .toList();
     }
 
     /**
@@ -858,7 +800,7 @@ public class GeminiNPCTrait extends Trait {
      * up the config and the system instructions. This is done when we respond to
      * a chat event for the first time.
      */
-    private void createChatIfNull(){
+    void createChatIfNull(){
         if (chat == null) {
             String systemInstruction = getSystemInstructions();
             if(plugin.showSystemInstructions)
@@ -868,146 +810,213 @@ public class GeminiNPCTrait extends Trait {
             chat = Chat.builder()
                     .maxMessages(30)
                     .systemInstruction(systemInstruction)
-                    .build(plugin.model.model);
+                    .build(plugin.model.model, plugin.model.streamingModel);
 
             log_debug("NPC " + npc.getFullName() + " has been created with model " + plugin.model);
         }
     }
 
-    static private String getItemStringFromShopActions(List<NPCShopAction> acts){
-        var x = acts.stream().map(NPCShopAction::describe).toList();
-        return String.join(", ", x);
-    }
-
-    private Material getItemMaterialFromShopActions(List<NPCShopAction> acts){
-        // work out the material which is the result of an action. We only take ItemActions into
-        // account, and we stop at the first one.
-        if(acts.isEmpty()) return null;
-        for(NPCShopAction act : acts){
-            if(act instanceof ItemAction ia){
-                // we have an item action, so return the material. We're going to ignore
-                // any stack after the first.
-                if(!ia.items.isEmpty()){
-                    ItemStack item = ia.items.getFirst();
-                    if(item!=null)return item.getType();
-                }
-            }
-        }
-        return null; // no item action found
-    }
-
-    private void getPricesForShopPage(ShopTrait.NPCShopPage page, JsonArray buyList, JsonArray sellList) {
-        // adds to 2 JSON arrays - one for buying and one for selling.
-        // vile, vile, vile. There's no way of getting the item count.
-
-        for(int i=0;i<45;i++){ // max items in a 5x9 shop. It's annoying, this.
-            var item = page.getItem(i);
-            if(item==null) continue; // item is null, skip it.
-            var result = item.getResult();
-            var cost = item.getCost();
-
-            // var resultMat = getItemMaterialFromShopActions(result);
-            var costMat = getItemMaterialFromShopActions(cost);
-            var displayMat = item.getDisplayItem(null).getType(); // this is the item that is displayed in the shop, not the result or cost.
-
-            JsonObject obj = new JsonObject();
-            if(costMat == displayMat){
-                // if the item displayed in the shop is the COST item, we are buying this kind of thing.
-                obj.addProperty("item", getItemStringFromShopActions(cost));
-                obj.addProperty("value", getItemStringFromShopActions(result));
-                buyList.add(obj);
-            } else {
-                // otherwise, we are selling this kind of thing.
-                obj.addProperty("item", getItemStringFromShopActions(result));
-                obj.addProperty("value", getItemStringFromShopActions(cost));
-                sellList.add(obj);
-            }
-        }
-    }
-
+    /**
+     * Get the shop's price lists, with the standard shop instruction text, from the catalogue -
+     * which only reads the shop again if it's changed.
+     * @return the shop instructions (don't modify it!)
+     */
     public JsonObject getShopInstructions() {
-        JsonObject obj = new JsonObject();
-        obj.addProperty("information", plugin.getText("shop-instruction"));
-        // add the shop items
-        var shop = npc.getOrAddTrait(ShopTrait.class).getDefaultShop();
-        // we can only get the first page because for some reason there's no way of getting
-        // the number of pages, and the code uses a getOrAdd.. pattern.
-
-        JsonArray buyList = new JsonArray();
-        JsonArray sellList = new JsonArray();
-
-        for(var page: shop.getPages()) {
-            getPricesForShopPage(page, buyList, sellList);
-        }
-        obj.add("items-you-buy", buyList);
-        obj.add("items-you-sell", sellList);
-        return obj;
+        return shopCatalogue.get(npc.getOrAddTrait(ShopTrait.class).getDefaultShop(), plugin.getText("shop-instruction"));
     }
 
+    /**
+     * @return the shop instructions already serialised as JSON, for putting straight into a prompt
+     */
+    public String getShopInstructionsJson() {
+        return shopCatalogue.getSerialised(npc.getOrAddTrait(ShopTrait.class).getDefaultShop(), plugin.getText("shop-instruction"));
+    }
 
     /**
      * This is called when the NPC is spoken to. It will be called from the
      * ChatEventListener when a player sends a message. We check to see if the
-     * player is in range, and if so, we send the message to the AI in a thread.
-     * The response will be added to a queue which is read in the update. That
-     * makes this effectively non-blocking.
+     * player is in range, and if so, we post the message to the NPC's mailbox, which sends it
+     * to the AI via the request executor. The response will be delivered back on the main
+     * thread by the response dispatcher. That makes this effectively non-blocking.
      *
      * @param player The player who spoke to the NPC.
      * @param utterance  The message they sent.
+     * @param lane  The priority lane - what sort of thing this is a response to.
+     */
+    public void respondTo(Player player, String utterance, Lane lane) {
+        respondTo(player, utterance, lane, false);
+    }
+
+    /**
+     * As above, but marking what the player said as speech - for bystanders who overhear a player
+     * talking to someone else, which go in the event lane but mustn't get a cached response.
+     *
+     * @param speech true if the utterance is something the player said
      */
-    public void respondTo(Player player, String utterance) {
+    public void respondTo(Player player, String utterance, Lane lane, boolean speech) {
 
         if(player!=null && player.hasMetadata("NPC")) {
             // here we are responding to an NPC. We only allow this sometimes, according to npcRespondProb
             if(ThreadLocalRandom.current().nextDouble()>npcRespondProb)
                 return;
+            // and NPCs chatting among themselves is just background colour
+            lane = Lane.AMBIENT;
         }
 
         // if the chat session is null, we need to create it.
         createChatIfNull();
 
-        // limit rate globally - across all chats!
-        if(plugin.eventRateTracker.getEventsInLastMinute()>20){
-            Plugin.log("Rate limit exceeded, not responding to " + player.getDisplayName());
+        if(!plugin.callsEnabled) {
+            plugin.getServer().getLogger().warning("AI model calls are disabled");
             return;
         }
 
-        if(!plugin.callsEnabled) {
-            plugin.getServer().getLogger().warning("AI model calls are disabled");
+        // and they're paused automatically if the model keeps failing
+        if(plugin.model.breaker.isOpen()) {
+            log_debug("Model circuit breaker open, not responding to " + utterance);
+            return;
+        }
+
+        // if we've used up today's tokens, we ignore events and just mumble at players
+        if(plugin.tokens.isOverBudget(tokenAccountName(), personaName)) {
+            log_debug("Over token budget, not responding to " + utterance);
+            if(lane == Lane.CHAT && player != null) {
+                Chat.Response r = new Chat.Response();
+                r.player = player.getName();
+                r.text = plugin.getText("over-token-budget");
+                plugin.responseDispatcher.deliver(this, r);
+            }
             return;
         }
 
         // look for nearby players, and only do something if there are some.
         // Are any players less than 12m away?
         if (nearbyPlayers.stream().anyMatch(p -> p.d < 12)) {
-            // start a new thread which sends to the AI and waits for the result
-            new Thread(() -> {
-                plugin.eventRateTracker.event();
-                String input;
-                if(player==null){
-                    input = "event: "+utterance;
-                } else {
-                    input = ChatColor.stripColor(player.getDisplayName()) + ": " + utterance;
-                }
-                JsonObject output = new JsonObject();
-                output.add("context", getContext());
-                output.add("input", new JsonPrimitive(input));
-
-                String outString = output.toString();
-                plugin.getServer().getLogger().info("Sending to AI: " + outString);
-                plugin.request_count++;
-                // here we get the response
-                Chat.Response response = chat.sendAndGetResponse(outString);
-                if (response == null) {
-                    plugin.getServer().getLogger().severe("No response");
-                    return;
-                }
-                plugin.getServer().getLogger().info("Response received");
-                // put that in the queue
-                // otherwise we're all good. Queue the message.
-                queue.offer(response);
-            }).start();
+            // limit rate - per player, per NPC, per world and globally across all chats!
+            World w = npc.getStoredLocation().getWorld();
+            Quotas.Scope full = plugin.quotas.tryAcquire(lane, w == null ? null : w.getName(),
+                    Integer.toString(npc.getId()),
+                    player == null ? null : player.getName());
+            if(full != null) {
+                Plugin.log("Rate limit (" + full + ", " + lane + ") exceeded, not responding to " + utterance);
+                return;
+            }
+            // post the input to our mailbox. If there's no request running for this NPC one will be
+            // started; otherwise the input will be merged into the follow-up request.
+            String input;
+            if(player==null){
+                input = "event: "+utterance;
+            } else {
+                input = ChatColor.stripColor(player.getDisplayName()) + ": " + utterance;
+            }
+            String playerName = player == null || player.hasMetadata("NPC") ? null : player.getName();
+            if(!mailbox.post(new Input(input, lane, playerName, speech || lane == Lane.CHAT, captureContext(), null), lane))
+                Plugin.warn("AI request queue full, not responding to " + utterance);
+        }
+    }
+
+    /**
+     * Send a batch of inputs from the mailbox to the AI and wait for the result. This runs on a
+     * request executor thread, but never on two threads at once for the same NPC. If several inputs
+     * arrived while the previous call was running they are sent together, one per line.
+     *
+     * @param inputs the inputs, with their text already prefixed with the speaker (or "event:")
+     */
+    private void processRequests(List<Input> inputs) {
+        Chat c = chat; // could be reset under our feet
+        if(c == null) {
+            log_debug("Chat was reset before the request could be sent");
+            return;
         }
+        // remarks from an ambient batch have already been answered, so they just need adding to
+        // the chat - which is done here so that only the mailbox's drain ever changes the memory.
+        if(inputs.stream().anyMatch(i -> i.response() != null)) {
+            List<Input> rest = new ArrayList<>();
+            for(Input i : inputs) {
+                if(i.response() != null)
+                    rememberAnswered(c, i);
+                else
+                    rest.add(i);
+            }
+            if(rest.isEmpty())
+                return;
+            inputs = rest;
+        }
+        // the newest snapshot is the one to use if several inputs were merged. Usually only the
+        // changes are sent, but every so often - or when the last full context has fallen out of
+        // the chat's memory - we send the lot.
+        ContextSnapshot snap = inputs.getLast().context();
+        boolean keyframe = c.needsKeyframe(plugin.contextKeyframeInterval);
+        if(keyframe)
+            contextBuilder.forgetSent();
+        String input = inputs.stream().map(Input::text).collect(Collectors.joining("\n"));
+        String outString = contextBuilder.writePrompt(snap, plugin.contextEncoder, plugin, npc.getName(), input);
+        plugin.contextTokenReport.record(snap, npc.getName());
+
+        // if this is all events (rather than players talking to us or near us) we might have a cached response.
+        // The time is taken out of the context for the key, since it's nearly always different.
+        ResponseCache cache = plugin.responseCache;
+        String cacheKey = null;
+        if(cache.isEnabled() && inputs.stream().noneMatch(Input::speech)) {
+            cacheKey = ResponseCache.key(personaName, snap.withoutTime().toString(), input);
+            Chat.Response cached = cache.get(cacheKey, outString.length());
+            if(cached != null) {
+                log_debug("Cached response for " + input);
+                c.remember(outString, cached);  // so the model knows it said it
+                if(keyframe)
+                    c.keyframeSent();
+                plugin.responseDispatcher.deliver(this, cached);
+                return;
+            }
+        }
+
+        plugin.getServer().getLogger().info("Sending to AI: " + outString);
+        plugin.request_count.incrementAndGet();
+        // here we get the response
+        Chat.Response response;
+        boolean streamed = c.canStream();
+        if(streamed) {
+            // speak the text as it arrives, a sentence or so at a time.
+            response = c.sendAndStream(outString, (p, text) -> plugin.responseDispatcher.deliver(this, Chat.Response.chunk(p, text)));
+        } else {
+            response = c.sendAndGetResponse(outString);
+        }
+        // count the tokens, even if the response was no good
+        plugin.tokens.record(c.getLastTokenUsage(), tokenAccountName(), personaName,
+                inputs.stream().map(Input::player).filter(Objects::nonNull).distinct().toList());
+        if (response == null) {
+            plugin.getServer().getLogger().severe("No response");
+            return;
+        }
+        plugin.getServer().getLogger().info("Response received");
+        if(keyframe)
+            c.keyframeSent();
+        if(cacheKey != null)
+            cache.put(cacheKey, response);
+        // if it was streamed, the complete response just carries the action since the text
+        // has already been said.
+        if(streamed)
+            response.text = null;
+        // we're all good - hand it over to be spoken on the main thread.
+        plugin.responseDispatcher.deliver(this, response);
+    }
+
+    /**
+     * Add an input which has already been answered to the chat, as if it had been sent - so the
+     * context goes through our context builder like any other - and pass the response on.
+     * Called from processRequests.
+     */
+    private void rememberAnswered(Chat c, Input in) {
+        boolean keyframe = c.needsKeyframe(plugin.contextKeyframeInterval);
+        if(keyframe)
+            contextBuilder.forgetSent();
+        String outString = contextBuilder.writePrompt(in.context(), plugin.contextEncoder, plugin, npc.getName(), in.text());
+        c.remember(outString, in.response());
+        if(keyframe)
+            c.keyframeSent();
+        Chat.Response r = in.response();
+        if(r.text != null || r.action != null)
+            plugin.responseDispatcher.deliver(this, r);
     }
 
     private void processGreet() {
@@ -1023,7 +1032,7 @@ public class GeminiNPCTrait extends Trait {
                 // if we haven't seen this player recently
                 if (!recentlySeenPlayers.has(p.getName())) {
                     // greet them by passing a special input to respondTo
-                    respondTo(p, "(enters)");
+                    respondTo(p, "(enters)", Lane.EVENT);
                 }
                 // we always do this when they're nearby to reset their timer or add them
                 recentlySeenPlayers.add(p.getName(), null);
@@ -1042,7 +1051,7 @@ public class GeminiNPCTrait extends Trait {
     void reset(){
         if(chat!=null){
             chat = null;
-            prevContext = null;
+            contextBuilder.forgetSent();
         }
     }
 
@@ -1053,6 +1062,7 @@ public class GeminiNPCTrait extends Trait {
         c.msg("NPC " + getNPC().getName());
         c.msg("  org.pale.gemininpc.ai.Persona: " + personaName + "gender: "+gender);
         c.msg("  NPC respond probability: "+npcRespondProb);
+        c.msg("  Inputs waiting for AI: "+mailbox.getPendingCount());
         c.msg("  Waypoints:");
         for (String name : waypoints.getWaypointNames()) {
             try {
@@ -0,0 +1,58 @@
+package org.pale.gemininpc;
+
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Summarises an NPC's inventory for the context as the number of each material it's carrying,
+ * rather than one entry per stack. The summary is kept along with a fingerprint of the inventory -
+ * a hash of what's in each slot - and only built again when the fingerprint changes, since NPCs'
+ * inventories hardly ever do. Main thread only.
+ */
+public class InventorySummary {
+    private long fingerprint = 0;
+    private SortedMap<String, Integer> summary = null;
+    private boolean built = false;
+
+    /**
+     * @param inv the inventory
+     * @return material name to count, sorted by name; or null if the inventory is empty
+     */
+    public SortedMap<String, Integer> summarise(Inventory inv) {
+        ItemStack[] items = inv.getContents();
+        long fp = fingerprint(items);
+        if (!built || fp != fingerprint) {
+            summary = build(items);
+            fingerprint = fp;
+            built = true;
+        }
+        return summary;
+    }
+
+    private static long fingerprint(ItemStack[] items) {
+        long h = 17;
+        for (int i = 0; i < items.length; i++) {
+            ItemStack item = items[i];
+            if (item != null) {
+                h = h * 31 + i;
+                h = h * 31 + item.getType().ordinal();
+                h = h * 31 + item.getAmount();
+            }
+        }
+        return h;
+    }
+
+    private static SortedMap<String, Integer> build(ItemStack[] items) {
+        TreeMap<String, Integer> counts = new TreeMap<>();
+        for (ItemStack item : items) {
+            if (item != null) {
+                counts.merge(item.getType().name(), item.getAmount(), Integer::sum);
+            }
+        }
+        return counts.isEmpty() ? null : Collections.unmodifiableSortedMap(counts);
+    }
+}
@@ -0,0 +1,152 @@
+package org.pale.gemininpc;
+
+import net.citizensnpcs.api.npc.NPC;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.block.Block;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.LivingEntity;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Caches the results of hasLineOfSight, which is a ray trace - and the scan for nearby entities
+ * does one for every player and monster near every NPC. The result is keyed by the NPC, the target
+ * and the blocks both are in, so it's reused for as long as neither moves out of their block, for
+ * a few seconds at most.
+ * <p>
+ * Results are grouped by the chunk the NPC is in. Targets are found within a chunk's width of the
+ * NPC, so any block which could get in the way is in that chunk or a neighbour: placing or
+ * breaking a block throws away the results for its chunk and the chunks around it, and unloading
+ * a chunk throws away its own. If there are too many results, the expired ones are thrown away -
+ * and if that doesn't make room, all of them. Main thread only.
+ */
+public class LineOfSightCache {
+    private record ChunkKey(String world, int x, int z) {}
+
+    /**
+     * @param from the NPC's block, packed into a long
+     * @param to   the target's block, likewise
+     */
+    private record Key(int npc, UUID target, long from, long to) {}
+
+    private record Entry(boolean visible, long expiry) {}
+
+    private final Map<ChunkKey, Map<Key, Entry>> chunks = new HashMap<>();
+    private final long ttlMillis;
+    private final int maxEntries;
+    private int size = 0;
+    private long hits = 0, misses = 0, invalidated = 0;
+
+    /**
+     * @param cs the "line-of-sight" section of the config; may be null, in which case we use the defaults
+     */
+    public LineOfSightCache(ConfigurationSection cs) {
+        ttlMillis = 1000L * (cs == null ? 3 : cs.getInt("ttl-seconds", 3));
+        maxEntries = Math.max(1, cs == null ? 4096 : cs.getInt("max-entries", 4096));
+    }
+
+    // the way Minecraft packs block positions: 26 bits of x and z, 12 of y
+    private static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    /**
+     * Can the NPC see the target? Taken from the cache if neither has changed block since we last
+     * looked and nothing has been built or broken nearby.
+     * @param npc     the NPC
+     * @param from    its entity
+     * @param fromLoc where it is
+     * @param to      the target, from the proximity grid
+     * @return true if the NPC has line of sight to the target
+     */
+    public boolean hasLineOfSight(NPC npc, LivingEntity from, Location fromLoc, ProximityGrid.Tracked to) {
+        if (ttlMillis <= 0 || fromLoc.getWorld() == null)
+            return from.hasLineOfSight(to.entity());
+        long now = System.currentTimeMillis();
+        int bx = fromLoc.getBlockX(), bz = fromLoc.getBlockZ();
+        ChunkKey ck = new ChunkKey(fromLoc.getWorld().getName(), bx >> 4, bz >> 4);
+        Map<Key, Entry> chunk = chunks.computeIfAbsent(ck, k -> new HashMap<>());
+        Key key = new Key(npc.getId(), to.entity().getUniqueId(),
+                pack(bx, fromLoc.getBlockY(), bz),
+                pack((int) Math.floor(to.x()), (int) Math.floor(to.y()), (int) Math.floor(to.z())));
+        Entry e = chunk.get(key);
+        if (e != null && e.expiry > now) {
+            hits++;
+            return e.visible;
+        }
+        misses++;
+        boolean visible = from.hasLineOfSight(to.entity());
+        if (e == null) {
+            if (size >= maxEntries) {
+                makeRoom(now);
+                chunk = chunks.computeIfAbsent(ck, k -> new HashMap<>());  // may have been thrown away
+            }
+            size++;
+        }
+        chunk.put(key, new Entry(visible, now + ttlMillis));
+        return visible;
+    }
+
+    /**
+     * We're full - throw away everything which has expired, or everything if nothing has.
+     */
+    private void makeRoom(long now) {
+        for (Iterator<Map<Key, Entry>> it = chunks.values().iterator(); it.hasNext(); ) {
+            Map<Key, Entry> m = it.next();
+            int n = m.size();
+            m.values().removeIf(e -> e.expiry <= now);
+            size -= n - m.size();
+            if (m.isEmpty())
+                it.remove();
+        }
+        if (size >= maxEntries)
+            clear();
+    }
+
+    private int drop(ChunkKey k) {
+        Map<Key, Entry> m = chunks.remove(k);
+        if (m == null)
+            return 0;
+        size -= m.size();
+        return m.size();
+    }
+
+    /**
+     * A block has changed - throw away the results for NPCs in its chunk and those around it.
+     * @param b the block
+     */
+    public void blockChanged(Block b) {
+        if (chunks.isEmpty())
+            return;
+        String w = b.getWorld().getName();
+        int cx = b.getX() >> 4, cz = b.getZ() >> 4;
+        for (int x = cx - 1; x <= cx + 1; x++) {
+            for (int z = cz - 1; z <= cz + 1; z++) {
+                invalidated += drop(new ChunkKey(w, x, z));
+            }
+        }
+    }
+
+    /**
+     * A chunk has been unloaded - throw away its results.
+     * @param c the chunk
+     */
+    public void chunkUnloaded(Chunk c) {
+        drop(new ChunkKey(c.getWorld().getName(), c.getX(), c.getZ()));
+    }
+
+    public void clear() {
+        chunks.clear();
+        size = 0;
+    }
+
+    public String getStats() {
+        long total = hits + misses;
+        return String.format("%d results, %d hits, %d misses (%.0f%% hit rate), %d invalidated by block changes",
+                size, hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, invalidated);
+    }
+}
@@ -8,6 +8,8 @@ import java.util.*;
 import java.nio.file.Path;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 import net.citizensnpcs.api.npc.NPC;
@@ -26,8 +28,14 @@ import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 
 import org.jetbrains.annotations.NotNull;
+import org.pale.gemininpc.ai.Lane;
 import org.pale.gemininpc.ai.Model;
 import org.pale.gemininpc.ai.Persona;
+import org.pale.gemininpc.ai.Quotas;
+import org.pale.gemininpc.ai.RequestExecutor;
+import org.pale.gemininpc.ai.ResilientChatModel;
+import org.pale.gemininpc.ai.ResponseCache;
+import org.pale.gemininpc.ai.TokenAccounting;
 import org.pale.gemininpc.command.*;
 import org.pale.gemininpc.plugininterfaces.Sentinel;
 import org.pale.gemininpc.waypoints.Waypoint;
@@ -40,14 +48,26 @@ public class Plugin extends JavaPlugin implements Listener {
      */
     static Plugin instance = null;
     static final String ROOTCMDNAME = "gemini";
-    final EventRateTracker eventRateTracker = new EventRateTracker();
     int sched;  // scheduler handle
-    int request_count = 0;   // AI request ctr
+    final AtomicLong request_count = new AtomicLong();   // AI request ctr - incremented on the request threads
     boolean showSystemInstructions; // config option
     int attackNotificationDuration; // config option - how many seconds does the "you have been attacked by.." last
     boolean callsEnabled = true;    // use to disable calls to Gemini LLM model
 
     public Model model; // the LLM interface
+    public RequestExecutor requestExecutor; // runs the AI requests on virtual threads
+    public Quotas quotas;   // request rate limits
+    public final ResponseDispatcher responseDispatcher = new ResponseDispatcher(this); // delivers responses on the main thread
+    public ResponseCache responseCache; // cached responses to events
+    public AmbientBatcher ambientBatcher; // sends ambient updates for several NPCs at once
+    public WorldEnvironment worldEnvironment; // time and weather, shared by all the NPCs in each world
+    public BlockSampleCache blockSamples; // light and snow at the blocks NPCs stand in
+    public RegionCache regionCache; // which JCFUtils region is where
+    public ProximityGrid proximity; // where the players and monsters are
+    public LineOfSightCache lineOfSight; // who can see whom
+    public final TokenAccounting tokens = new TokenAccounting(); // who's using the tokens, and daily budgets
+    public ContextEncoder contextEncoder = ContextEncoder.VERBOSE; // how contexts are turned into JSON
+    public final ContextTokenReport contextTokenReport = new ContextTokenReport(); // compares the encodings
 
     // how long we wait after a purchase before saying "no more purchases incoming, let's group
     // them and process them."
@@ -60,6 +80,12 @@ public class Plugin extends JavaPlugin implements Listener {
     // as opposed to a player
     double defaultNPCRespondProb = 0;
 
+    // how many NPCs other than the one being spoken to might also respond to a player's line
+    int maxBystanders = 1;
+
+    // the most exchanges with an NPC's chat before we send the full context again
+    int contextKeyframeInterval = 10;
+
     private final Registry commandRegistry = new Registry(ROOTCMDNAME);
     static final int TICK_RATE = 20;
     public String defaultGender = "non-binary";
@@ -84,6 +110,13 @@ public class Plugin extends JavaPlugin implements Listener {
 
     @Override
     public void onDisable() {
+        if(requestExecutor != null) {
+            requestExecutor.shutdown();
+            requestExecutor = null;
+        }
+        if(model != null)
+            model.close();
+        ResilientChatModel.shutdown();
         getLogger().info("GeminiNPC has been disabled");
     }
 
@@ -105,8 +138,15 @@ public class Plugin extends JavaPlugin implements Listener {
         if(modelSection==null){
             throw new RuntimeException("Model section in config.yml is null");
         }
+        // stop the old model's background tasks (the pool's health checks) before replacing it
+        if(model != null)
+            model.close();
         model = new Model(modelSection);
 
+        // the context encoding goes with the system instructions, which are only made when a chat
+        // starts. Reload resets all the chats, so it's safe to change it then.
+        contextEncoder = ContextEncoder.forName(deflt.getString("context-encoding", "verbose"));
+
         // loads all the config data, including personae
         loadConfig(c);
     }
@@ -144,6 +184,9 @@ public class Plugin extends JavaPlugin implements Listener {
 
         loadConfigAndCreateModel();
 
+        // the executor which runs the AI requests - like the model, this isn't changed on reload.
+        requestExecutor = new RequestExecutor(getConfig().getConfigurationSection("requests"));
+
         // this is the listener for pretty much ALL events EXCEPT NPC events, not just chat.
         new ChatEventListener(this);
 
@@ -159,9 +202,11 @@ public class Plugin extends JavaPlugin implements Listener {
                     if (npc != null) {
                         GeminiNPCTrait t = getTraitFor(npc);
                         if (t != null)
-                            t.updateInfrequent();
+                            ambientBatcher.update(t); // may bring some other NPCs along too
                     }
                 }
+                // and throw away rate limiters for NPCs and players we haven't heard from for a while
+                quotas.prune();
             }, TICK_RATE*60, TICK_RATE*30); // every 30 seconds we update one AI. Delay of 1 min before we start
             // If an AI has been updated recently, this won't happen because the trait will rate-limit
             // on a per-NPC basis. That way we don't get single-NPC worlds constantly updating 1 AI.
@@ -253,6 +298,21 @@ public class Plugin extends JavaPlugin implements Listener {
         removeNewlinesFromPersona = ps.getBoolean("remove-newlines-from-persona", false);
 
         defaultNPCRespondProb = ps.getDouble("default-npc-respond-prob", 0.1);
+        maxBystanders = ps.getInt("max-bystanders", 1);
+        contextKeyframeInterval = Math.max(1, ps.getInt("context-keyframe-interval", 10));
+
+        // request quotas; these start afresh on reload.
+        quotas = new Quotas(c.getConfigurationSection("requests"));
+        // and the response cache, which also starts empty.
+        responseCache = new ResponseCache(c.getConfigurationSection("cache"));
+        ambientBatcher = new AmbientBatcher(this, c.getConfigurationSection("ambient"));
+        worldEnvironment = new WorldEnvironment(c.getConfigurationSection("environment"));
+        blockSamples = new BlockSampleCache(c.getConfigurationSection("environment"));
+        regionCache = new RegionCache(c.getConfigurationSection("regions"));
+        proximity = new ProximityGrid(c.getConfigurationSection("proximity"));
+        lineOfSight = new LineOfSightCache(c.getConfigurationSection("line-of-sight"));
+        // the token counts carry on through a reload; only the budgets are read again
+        tokens.configure(c.getConfigurationSection("tokens"));
 
         // load the common templates - these can contain template variables themselves {{like}} {{this}}, and
         // can be included in all persona templates with {{include "common_template_name"}}.
@@ -358,15 +418,34 @@ public class Plugin extends JavaPlugin implements Listener {
         return false;
     }
 
+    // how long capturing context snapshots on the main thread has taken
+    private long contextCaptureNanos = 0;
+    private long contextCaptureCount = 0;
+
+    /**
+     * Record the time taken to capture a context snapshot. Main thread only.
+     * @param nanos the time taken
+     */
+    void recordContextCapture(long nanos) {
+        contextCaptureNanos += nanos;
+        contextCaptureCount++;
+    }
+
     // this is a list of all the NPCs which have the trait
     final Set<NPC> chatters = new HashSet<>();
+    // and where they are, so we can find the ones near a player quickly
+    final ChatterIndex chatterIndex = new ChatterIndex();
+    private final List<NPC> nearChatters = new ArrayList<>();  // reused by handleMessage
 
     public void addChatter(NPC npc) {
         chatters.add(npc);
+        if (npc.isSpawned())
+            chatterIndex.add(npc, npc.getStoredLocation());
     }
 
     public void removeChatter(NPC npc) {
         chatters.remove(npc);
+        chatterIndex.remove(npc);
     }
 
     // get the trait for the selected NPC for a player - each player can select an NPC
@@ -409,35 +488,93 @@ public class Plugin extends JavaPlugin implements Listener {
 
     /**
      * This is the main message handler - it gets called when a player sends a chat
-     * message. We check to see if we are roughly facing an NPC which has the trait,
-     * and if so, we call that NPC's respondTo method. That's the only place where
-     * the AI is called.
+     * message. We find the NPCs with the trait which are close and which we are roughly
+     * facing, and pick one of them to answer - see {@link #scoreListener}. The others are
+     * bystanders: each may chip in too, with its NPC response probability, but only up to
+     * maxBystanders of them. So a line spoken in a crowded tavern costs one model call
+     * (or a couple), not one for everyone in earshot.
      *
      * @param player the player who sent the message
      * @param msg  the message they sent
      */
     public void handleMessage(Player player, String msg) {
         Location playerloc = player.getLocation();
-        Vector playerpos = playerloc.toVector();
         Vector playerdir = playerloc.getDirection().normalize();
-        for (NPC npc : chatters) {
-            Location npc_location = npc.getEntity().getLocation();
-            Vector npcpos = npc_location.toVector();
+        String lowerMsg = ChatColor.stripColor(msg).toLowerCase();
+        GeminiNPCTrait best = null;
+        double bestScore = 0;
+        List<GeminiNPCTrait> bystanders = new ArrayList<>();
+        // only the chatters in the cells around the player can be near enough
+        chatterIndex.findNear(playerloc, 5, nearChatters);
+        for (NPC npc : nearChatters) {
+            Location npc_location = npc.getStoredLocation();
             if (npc.hasTrait(GeminiNPCTrait.class)) {
                 if (isNear(playerloc, npc_location, 5, 3)) { // chatters assume <5m and you're talking to them.
-                    Vector tonpc = npcpos.subtract(playerpos).normalize();
+                    double dx = npc_location.getX() - playerloc.getX();
+                    double dy = npc_location.getY() - playerloc.getY();
+                    double dz = npc_location.getZ() - playerloc.getZ();
+                    double dist = Math.sqrt(dx * dx + dy * dy + dz * dz);
                     // dot prod of facing vector and vector to player
-                    double dot = tonpc.dot(playerdir);
+                    double dot = dist == 0 ? 1 : (dx * playerdir.getX() + dy * playerdir.getY() + dz * playerdir.getZ()) / dist;
                     //log("Dot to "+npc.getName()+ " is "+Double.toString(dot));
                     // make sure we're roughly facing the NPC
                     if (dot > 0.2) {
-                        // this is where the magic happens. As it were.
                         GeminiNPCTrait ct = npc.getOrAddTrait(GeminiNPCTrait.class);
-                        ct.respondTo(player, msg);
+                        double score = scoreListener(ct, player, lowerMsg, dot, dist);
+                        if (best == null || score > bestScore) {
+                            if (best != null)
+                                bystanders.add(best);
+                            best = ct;
+                            bestScore = score;
+                        } else {
+                            bystanders.add(ct);
+                        }
                     }
                 }
             }
         }
+        nearChatters.clear();
+        if (best == null)
+            return;
+        // this is where the magic happens. As it were.
+        best.recentPartners.add(player.getName(), null);
+        best.respondTo(player, msg, Lane.CHAT);
+
+        // and perhaps some of the others join in - in the event lane, since they weren't
+        // being spoken to.
+        Collections.shuffle(bystanders);
+        int joined = 0;
+        for (GeminiNPCTrait t : bystanders) {
+            if (joined >= maxBystanders)
+                break;
+            if (ThreadLocalRandom.current().nextDouble() < t.npcRespondProb) {
+                t.respondTo(player, msg, Lane.EVENT, true);
+                joined++;
+            }
+        }
+    }
+
+    /**
+     * How likely is it that the player is talking to this NPC? Being looked at directly and
+     * being close count for a bit; being named, or having been talking to the player recently,
+     * count for a lot more.
+     * @param t        the NPC's trait
+     * @param player   the player speaking
+     * @param lowerMsg what they said, in lower case without colours
+     * @param dot      the dot product of the player's facing direction and the direction to the NPC
+     * @param dist     the distance to the NPC
+     * @return the score - higher is more likely
+     */
+    private static double scoreListener(GeminiNPCTrait t, Player player, String lowerMsg, double dot, double dist) {
+        double score = dot + (1.0 - dist / 5.0);
+        // they might use the full name or just the first word of it
+        String name = ChatColor.stripColor(t.getNPC().getName()).toLowerCase();
+        String first = name.split(" ")[0];
+        if (!name.isEmpty() && (lowerMsg.contains(name) || (first.length() > 2 && lowerMsg.contains(first))))
+            score += 3;
+        if (t.recentPartners.has(player.getName()))
+            score += 1.5;
+        return score;
     }
 
     /**
@@ -449,6 +586,14 @@ public class Plugin extends JavaPlugin implements Listener {
         String info = model.toString();
         Plugin.log(info);
         c.msg(info);
+        String breaker = model.breaker.toString();
+        Plugin.log(breaker);
+        c.msg(breaker);
+        if(model.pool != null) {
+            for(var e: model.pool.getEndpoints()) {
+                c.msg("  " + e);
+            }
+        }
     }
 
     @SuppressWarnings("unused")
@@ -517,12 +662,53 @@ public class Plugin extends JavaPlugin implements Listener {
     @Cmd(desc="Get general resource usage info", argc=0)
     public void usage(CallInfo c) {
         c.msg("GeminiNPC usage:");
-        c.msg("  Events in last minute: "+eventRateTracker.getEventsInLastMinute());
+        c.msg("  Events in last minute: "+quotas.getGlobalUsage());
+        c.msg("  AI requests running: "+requestExecutor.getActiveCount()+"/"+requestExecutor.getMaxInFlight());
+        c.msg("  AI requests queued: "+requestExecutor.getQueueDepth()+"/"+requestExecutor.getMaxQueued());
+        for(Lane lane: Lane.values()) {
+            c.msg("    " + lane + " queued: " + requestExecutor.getQueueDepth(lane)
+                    + ", shed: " + requestExecutor.getShedCount(lane));
+        }
+        c.msg("  AI requests rejected (queue full): "+requestExecutor.getRejectedCount());
         c.msg("  Active chatters: "+chatters.size());
+        c.msg("  Chatter index: "+chatterIndex.getStats());
+        if(contextCaptureCount > 0) {
+            c.msg(String.format("  Context captures: %d, average %.1f us on main thread",
+                    contextCaptureCount, contextCaptureNanos / 1000.0 / contextCaptureCount));
+        }
+        c.msg("  Light/biome samples: "+blockSamples.getStats());
+        c.msg("  Region lookups: "+regionCache.getStats());
+        c.msg("  Proximity grid: "+proximity.getStats());
+        c.msg("  Line of sight: "+lineOfSight.getStats());
         c.msg("  Personae: "+personae.size());
         c.msg("  NPCs with personae: "+chatters.size());
     }
 
+    @SuppressWarnings("unused")
+    @Cmd(desc="show response cache statistics, or clear it", usage="[clear]")
+    public void cache(CallInfo c) {
+        if (c.getArgs().length > 0 && c.getArgs()[0].equals("clear")) {
+            responseCache.clear();
+            c.msg("Response cache cleared");
+        }
+        c.msg("Response cache: " + (responseCache.isEnabled() ? responseCache.getStats() : "disabled"));
+    }
+
+    @SuppressWarnings("unused")
+    @Cmd(desc="compare the sizes of recent contexts in the verbose and compact encodings (estimated tokens)", argc=0)
+    public void contexttokens(CallInfo c) {
+        for (String s : contextTokenReport.report(this)) {
+            c.msg(s);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    @Cmd(desc="flush the region lookup cache - do this after editing JCFUtils regions", argc=0)
+    public void regionflush(CallInfo c) {
+        regionCache.clear();
+        c.msg("Region cache flushed");
+    }
+
     @SuppressWarnings("unused")
     @Cmd(desc="Get info on an NPC", argc=0, cz=true)
     public void info(CallInfo c){
@@ -552,6 +738,7 @@ public class Plugin extends JavaPlugin implements Listener {
         String name = c.getArgs()[0];
         GeminiNPCTrait t = c.getCitizen();
         t.waypoints.add(name, getdesc(c), c.getPlayer().getLocation());
+        t.contextBuilder.waypoint.invalidate();
         c.msg(ChatColor.AQUA+"Waypoint "+name+" added at "+
                 c.getPlayer().getLocation().getBlockX()+","+
                 c.getPlayer().getLocation().getBlockY()+","+
@@ -565,6 +752,7 @@ public class Plugin extends JavaPlugin implements Listener {
         GeminiNPCTrait t = c.getCitizen();
         try {
             t.waypoints.delete(name);
+            t.contextBuilder.waypoint.invalidate();
         } catch (Waypoints.Exception e) {
             c.msg(ChatColor.RED+"Waypoint path error: "+e.getMessage());
         }
@@ -578,6 +766,7 @@ public class Plugin extends JavaPlugin implements Listener {
         try {
             Waypoint wp = t.waypoints.getWaypoint(name);
             wp.setLocation(c.getPlayer().getLocation());
+            t.contextBuilder.waypoint.invalidate();
             c.msg(ChatColor.AQUA+"Waypoint "+name+" moved to "+
                     c.getPlayer().getLocation().getBlockX()+","+
                     c.getPlayer().getLocation().getBlockY()+","+
@@ -595,6 +784,7 @@ public class Plugin extends JavaPlugin implements Listener {
         try {
             Waypoint wp = t.waypoints.getWaypoint(name);
             wp.desc = getdesc(c);
+            t.contextBuilder.waypoint.invalidate();
         } catch (Waypoints.Exception e) {
             c.msg(ChatColor.RED+"Waypoint error: "+e.getMessage());
         }
@@ -618,8 +808,25 @@ public class Plugin extends JavaPlugin implements Listener {
     @SuppressWarnings("unused")
     @Cmd(desc="show number of API requests made",argc=0)
     public void reqs(CallInfo c){
-        c.msg(ChatColor.AQUA+"Requests total since boot: "+request_count);
-        c.msg(ChatColor.AQUA+"Requests in last minute: "+eventRateTracker.getEventsInLastMinute());
+        c.msg(ChatColor.AQUA+"Requests total since boot: "+request_count.get());
+        c.msg(ChatColor.AQUA+"Requests in last minute: "+quotas.getGlobalUsage());
+    }
+
+    @SuppressWarnings("unused")
+    @Cmd(desc="show token usage by NPC, persona, player and hour", usage="[count]")
+    public void tokens(CallInfo c){
+        int n = 5;
+        if(c.getArgs().length > 0) {
+            try {
+                n = Integer.parseInt(c.getArgs()[0]);
+            } catch (NumberFormatException e) {
+                c.msg(ChatColor.RED+"Not a number: "+c.getArgs()[0]);
+                return;
+            }
+        }
+        for(String s: tokens.report(n)) {
+            c.msg(ChatColor.AQUA+s);
+        }
     }
 
     @SuppressWarnings("unused")
@@ -0,0 +1,167 @@
+package org.pale.gemininpc;
+
+import net.citizensnpcs.api.CitizensAPI;
+import net.citizensnpcs.api.npc.NPC;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.Monster;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the players and monsters are, shared by all the NPCs. Rather than each NPC asking the
+ * world for the entities around it - which in a busy town means dozens of NPCs finding the same
+ * players over and over - we sweep the players (real ones, and the NPCs which are players too)
+ * and the monsters into a grid of cells once per interval, and each NPC looks in the cells
+ * around it. Monsters are only looked for in the chunks around the chatters. The sweep is done by
+ * whichever NPC asks first once the last one is too old, so it costs in proportion to the number
+ * of players and NPCs (and the monsters near them) rather than their product.
+ * Main thread only.
+ */
+public class ProximityGrid {
+    private static final int CELL_SHIFT = 4;    // cells are 16 blocks across
+
+    /**
+     * An entity found by the sweep, and where it was then.
+     * @param npc true if this is a Citizens NPC rather than a real player
+     */
+    public record Tracked(Entity entity, double x, double y, double z, boolean npc) {}
+
+    // world name -> cell -> what's in it
+    private Map<String, Map<Long, List<Tracked>>> players = new HashMap<>();
+    private Map<String, Map<Long, List<Tracked>>> monsters = new HashMap<>();
+    private final long sweepMillis;
+    private long lastSweep = 0;
+    private long sweeps = 0, queries = 0;
+    private int trackedCount = 0;
+
+    /**
+     * @param cs the "proximity" section of the config; may be null, in which case we use the defaults
+     */
+    public ProximityGrid(ConfigurationSection cs) {
+        sweepMillis = Math.max(1, cs == null ? 10 : cs.getInt("sweep-ticks", 10)) * 50L;
+    }
+
+    private static long cell(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xffffffffL);
+    }
+
+    private int add(Map<String, Map<Long, List<Tracked>>> grid, Entity e, boolean npc) {
+        Location loc = e.getLocation();
+        World w = loc.getWorld();
+        if (w == null)
+            return 0;
+        grid.computeIfAbsent(w.getName(), k -> new HashMap<>())
+                .computeIfAbsent(cell(loc.getBlockX() >> CELL_SHIFT, loc.getBlockZ() >> CELL_SHIFT),
+                        k -> new ArrayList<>(4))
+                .add(new Tracked(e, loc.getX(), loc.getY(), loc.getZ(), npc));
+        return 1;
+    }
+
+    /**
+     * Sweep everything into new grids, if the last sweep is too old.
+     */
+    private void sweepIfStale() {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < sweepMillis)
+            return;
+        lastSweep = now;
+        sweeps++;
+        Map<String, Map<Long, List<Tracked>>> p = new HashMap<>();
+        Map<String, Map<Long, List<Tracked>>> m = new HashMap<>();
+        int n = 0;
+        for (Player pl : Bukkit.getOnlinePlayers())
+            n += add(p, pl, false);
+        // NPCs which are players count as players, as they always have
+        for (NPC npc : CitizensAPI.getNPCRegistry()) {
+            if (npc.isSpawned() && npc.getEntity() instanceof Player)
+                n += add(p, npc.getEntity(), true);
+        }
+        // monsters only matter near chatters, so we only look in the chunks around them - which
+        // are never more than a chunk away, since NPCs don't look further than that
+        ChatterIndex chatterIndex = Plugin.getInstance().chatterIndex;
+        for (String wname : chatterIndex.getWorlds()) {
+            World w = Bukkit.getWorld(wname);
+            if (w == null)
+                continue;
+            for (long c : chatterIndex.chunksAround(wname, 1)) {
+                int cx = ChatterIndex.cellX(c), cz = ChatterIndex.cellZ(c);
+                if (!w.isChunkLoaded(cx, cz))
+                    continue;
+                for (Entity e : w.getChunkAt(cx, cz).getEntities()) {
+                    if (e instanceof Monster mon)
+                        n += add(m, mon, false);
+                }
+            }
+        }
+        players = p;
+        monsters = m;
+        trackedCount = n;
+    }
+
+    private void find(Map<String, Map<Long, List<Tracked>>> grid, Location loc, double d, double dy,
+                      List<Tracked> out) {
+        out.clear();
+        sweepIfStale();
+        queries++;
+        World w = loc.getWorld();
+        if (w == null)
+            return;
+        Map<Long, List<Tracked>> cells = grid.get(w.getName());
+        if (cells == null)
+            return;
+        double x = loc.getX(), y = loc.getY(), z = loc.getZ();
+        int x0 = (int) Math.floor(x - d) >> CELL_SHIFT, x1 = (int) Math.floor(x + d) >> CELL_SHIFT;
+        int z0 = (int) Math.floor(z - d) >> CELL_SHIFT, z1 = (int) Math.floor(z + d) >> CELL_SHIFT;
+        for (int cx = x0; cx <= x1; cx++) {
+            for (int cz = z0; cz <= z1; cz++) {
+                List<Tracked> list = cells.get(cell(cx, cz));
+                if (list == null)
+                    continue;
+                for (Tracked t : list) {
+                    // the same box getNearbyEntities would use
+                    if (Math.abs(t.x - x) <= d && Math.abs(t.z - z) <= d && Math.abs(t.y - y) <= dy
+                            && t.entity.isValid())
+                        out.add(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the players (including NPCs which are players) in a box around a location, as of the
+     * last sweep.
+     * @param loc the centre of the box
+     * @param d   the distance in x and z
+     * @param dy  the distance in y
+     * @param out cleared and filled with the players - so the caller can reuse it
+     */
+    public void findPlayers(Location loc, double d, double dy, List<Tracked> out) {
+        find(players, loc, d, dy, out);
+    }
+
+    /**
+     * Find the monsters in a box around a location, as of the last sweep.
+     * @param loc the centre of the box
+     * @param d   the distance in x and z
+     * @param dy  the distance in y
+     * @param out cleared and filled with the monsters - so the caller can reuse it
+     */
+    public void findMonsters(Location loc, double d, double dy, List<Tracked> out) {
+        find(monsters, loc, d, dy, out);
+    }
+
+    /**
+     * @return a line of statistics for the usage command
+     */
+    public String getStats() {
+        return String.format("%d entities in last sweep, %d sweeps, %d queries", trackedCount, sweeps, queries);
+    }
+}
@@ -0,0 +1,78 @@
+package org.pale.gemininpc;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.pale.jcfutils.region.Region;
+import org.pale.jcfutils.region.RegionManager;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache in front of JCFUtils' region lookup, which can be slow with a lot of overlapping regions.
+ * It's keyed on the world and block position, remembers "no region" as well as regions, and throws
+ * away the least recently used positions when it gets too big. Anything that wants to know which
+ * region something is in should ask this rather than the RegionManager.
+ * <p>
+ * JCFUtils doesn't tell us when regions are edited, so entries expire after a while; the cache is
+ * also cleared on reload, and can be flushed by hand with the "regionflush" command after editing
+ * regions. Main thread only.
+ */
+public class RegionCache {
+    private record Key(String world, int x, int y, int z) {}
+
+    private record Entry(Region region, long expiry) {}   // region is null if there's no region here
+
+    private final long ttl;         // milliseconds
+    private final int maxEntries;
+    private final Map<Key, Entry> entries;
+    private long hits = 0, misses = 0;
+
+    /**
+     * @param cs the "regions" section of the config; may be null, in which case we use the defaults
+     */
+    public RegionCache(ConfigurationSection cs) {
+        ttl = (cs == null ? 60 : cs.getLong("ttl", 60)) * 1000L;
+        maxEntries = Math.max(1, cs == null ? 4096 : cs.getInt("max-entries", 4096));
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Find the smallest region containing a location.
+     * @param loc the location
+     * @return the region, or null if there isn't one (or the world has no regions)
+     */
+    public Region getSmallestRegion(Location loc) {
+        World w = loc.getWorld();
+        if (w == null)
+            return null;
+        long now = System.currentTimeMillis();
+        Key k = new Key(w.getName(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+        Entry e = entries.get(k);
+        if (e != null && e.expiry > now) {
+            hits++;
+            return e.region;
+        }
+        misses++;
+        RegionManager rm = RegionManager.getManager(w);
+        Region r = rm == null ? null : rm.getSmallestRegion(loc);
+        entries.put(k, new Entry(r, now + ttl));
+        return r;
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public String getStats() {
+        long total = hits + misses;
+        return String.format("%d positions, %d hits, %d misses (%.0f%% hit rate)", entries.size(), hits, misses,
+                total == 0 ? 0.0 : 100.0 * hits / total);
+    }
+}
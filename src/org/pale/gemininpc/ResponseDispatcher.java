@@ -0,0 +1,51 @@
+package org.pale.gemininpc;
+
+import org.bukkit.Bukkit;
+import org.pale.gemininpc.ai.Chat;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers responses from the AI to their NPCs on the main thread. When a request thread has a
+ * response it hands it to us; if there isn't already a delivery task scheduled, we schedule one
+ * for the next tick. So every response that completes within the same tick is delivered by a
+ * single sync task, and when nothing is happening nothing runs at all - no polling.
+ */
+public class ResponseDispatcher {
+    private record Delivery(GeminiNPCTrait trait, Chat.Response response) {}
+
+    private final Plugin plugin;
+    private final ConcurrentLinkedQueue<Delivery> completed = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    public ResponseDispatcher(Plugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Hand over a response for delivery. Can be called from any thread.
+     * @param t the trait of the NPC which should speak it
+     * @param r the response (or part of it, if it's streaming)
+     */
+    public void deliver(GeminiNPCTrait t, Chat.Response r) {
+        completed.offer(new Delivery(t, r));
+        if (scheduled.compareAndSet(false, true)) {
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, this::drain);
+            } else {
+                scheduled.set(false);   // shutting down; nobody to hear it anyway
+            }
+        }
+    }
+
+    private void drain() {
+        // clear the flag first, so anything completing while we deliver schedules another run
+        // rather than getting stuck in the queue.
+        scheduled.set(false);
+        Delivery d;
+        while ((d = completed.poll()) != null) {
+            d.trait.deliverResponse(d.response);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.pale.gemininpc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.citizensnpcs.trait.ShopTrait;
+import net.citizensnpcs.trait.shop.ItemAction;
+import net.citizensnpcs.trait.shop.NPCShopAction;
+import org.bukkit.Material;
+import org.bukkit.inventory.ItemStack;
+
+import java.util.List;
+
+/**
+ * A shop NPC's price lists, built from its Citizens shop. Building them means describing every
+ * item on every page, which is slow for big shops, so we keep the result and only build it again
+ * when the shop has changed. Citizens doesn't tell us when a shop is edited, so we take a cheap
+ * fingerprint of the shop - which item and action objects are in which slots - and rebuild if it's
+ * different. In case an edit changes an object in place, the lists are rebuilt every few minutes
+ * anyway. Main thread only.
+ */
+public class ShopCatalogue {
+    private static final long MAX_AGE = 5 * 60 * 1000;   // milliseconds
+    private static final int SLOTS = 45;                 // max items in a 5x9 shop page
+
+    private long fingerprint;
+    private long when;
+    private String info;
+    private JsonObject json = null;
+    private String serialised = null;
+
+    /**
+     * Get the shop instructions, building them if the shop has changed.
+     * @param shop the shop
+     * @param info the instruction text to go with the price lists
+     * @return the instructions - shared, so don't modify them
+     */
+    public JsonObject get(ShopTrait.NPCShop shop, String info) {
+        refresh(shop, info);
+        return json;
+    }
+
+    /**
+     * Get the shop instructions as a JSON string, building them if the shop has changed.
+     * @param shop the shop
+     * @param info the instruction text to go with the price lists
+     * @return the instructions, serialised
+     */
+    public String getSerialised(ShopTrait.NPCShop shop, String info) {
+        refresh(shop, info);
+        return serialised;
+    }
+
+    private void refresh(ShopTrait.NPCShop shop, String info) {
+        long now = System.currentTimeMillis();
+        long fp = fingerprint(shop);
+        if (json == null || fp != fingerprint || !info.equals(this.info) || now - when > MAX_AGE) {
+            json = build(shop, info);
+            serialised = json.toString();
+            fingerprint = fp;
+            this.info = info;
+            when = now;
+        }
+    }
+
+    /**
+     * A hash of which objects are where in the shop. This doesn't describe anything, so it's
+     * much cheaper than building the lists.
+     */
+    private static long fingerprint(ShopTrait.NPCShop shop) {
+        long h = 17;
+        for (var page : shop.getPages()) {
+            h = h * 31 + System.identityHashCode(page);
+            for (int i = 0; i < SLOTS; i++) {
+                var item = page.getItem(i);
+                if (item == null)
+                    continue;
+                h = h * 31 + i;
+                h = h * 31 + System.identityHashCode(item);
+                for (NPCShopAction a : item.getCost())
+                    h = h * 31 + System.identityHashCode(a);
+                for (NPCShopAction a : item.getResult())
+                    h = h * 31 + System.identityHashCode(a);
+            }
+        }
+        return h;
+    }
+
+    private static JsonObject build(ShopTrait.NPCShop shop, String info) {
+        JsonObject obj = new JsonObject();
+        obj.addProperty("information", info);
+        JsonArray buyList = new JsonArray();
+        JsonArray sellList = new JsonArray();
+        for (var page : shop.getPages()) {
+            getPricesForShopPage(page, buyList, sellList);
+        }
+        obj.add("items-you-buy", buyList);
+        obj.add("items-you-sell", sellList);
+        return obj;
+    }
+
+    private static String getItemStringFromShopActions(List<NPCShopAction> acts) {
+        var x = acts.stream().map(NPCShopAction::describe).toList();
+        return String.join(", ", x);
+    }
+
+    private static Material getItemMaterialFromShopActions(List<NPCShopAction> acts) {
+        // work out the material which is the result of an action. We only take ItemActions into
+        // account, and we stop at the first one.
+        if (acts.isEmpty()) return null;
+        for (NPCShopAction act : acts) {
+            if (act instanceof ItemAction ia) {
+                // we have an item action, so return the material. We're going to ignore
+                // any stack after the first.
+                if (!ia.items.isEmpty()) {
+                    ItemStack item = ia.items.getFirst();
+                    if (item != null) return item.getType();
+                }
+            }
+        }
+        return null; // no item action found
+    }
+
+    private static void getPricesForShopPage(ShopTrait.NPCShopPage page, JsonArray buyList, JsonArray sellList) {
+        // adds to 2 JSON arrays - one for buying and one for selling.
+        // vile, vile, vile. There's no way of getting the item count.
+
+        for (int i = 0; i < SLOTS; i++) {
+            var item = page.getItem(i);
+            if (item == null) continue; // item is null, skip it.
+            var result = item.getResult();
+            var cost = item.getCost();
+
+            var costMat = getItemMaterialFromShopActions(cost);
+            var displayMat = item.getDisplayItem(null).getType(); // this is the item that is displayed in the shop, not the result or cost.
+
+            JsonObject obj = new JsonObject();
+            if (costMat == displayMat) {
+                // if the item displayed in the shop is the COST item, we are buying this kind of thing.
+                obj.addProperty("item", getItemStringFromShopActions(cost));
+                obj.addProperty("value", getItemStringFromShopActions(result));
+                buyList.add(obj);
+            } else {
+                // otherwise, we are selling this kind of thing.
+                obj.addProperty("item", getItemStringFromShopActions(result));
+                obj.addProperty("value", getItemStringFromShopActions(cost));
+                sellList.add(obj);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.pale.gemininpc;
+
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The time and weather in each world, shared by all the NPCs in it. Rather than every NPC reading
+ * the world and working out the wording for itself, we do it once per world and hand out the
+ * same immutable state until it's refreshed - which happens when it's older than the refresh
+ * interval, or straight away when the weather or thunder changes. Main thread only.
+ */
+public class WorldEnvironment {
+    /**
+     * The shared environment of a world.
+     * @param worldTime   the world time in ticks
+     * @param time        the time as HH:MM
+     * @param storm       true if it's raining (or snowing)
+     * @param thunder     true if it's thundering
+     * @param weather     the weather wording for places where a storm is rain
+     * @param snowWeather the weather wording for places where a storm is snow
+     */
+    public record State(long worldTime, String time, boolean storm, boolean thunder,
+                        String weather, String snowWeather) {
+
+        static State of(long t, boolean storm, boolean thunder) {
+            int hours = (int) ((t / 1000 + 6) % 24);
+            int minutes = (int) (60 * (t % 1000) / 1000);
+            String timeString = String.format("%02d:%02d", hours, minutes);
+
+            String weatherString = "clear";
+            if (timeString.equals("midnight") || timeString.equals("night"))
+                weatherString = "dark";
+            else if (timeString.equals("dawn") || timeString.equals("dusk"))
+                weatherString = "twilight";
+
+            String snowString = weatherString;
+            if (thunder && storm) {
+                weatherString = snowString = "stormy and thundering";
+            } else if (storm) {
+                weatherString = "raining";
+                snowString = "snowing";
+            }
+            return new State(t, timeString, storm, thunder, weatherString, snowString);
+        }
+
+        /**
+         * @return a copy with the time taken out, for keying the response cache
+         */
+        State withoutTime() {
+            return new State(0, "", storm, thunder, weather, snowWeather);
+        }
+    }
+
+    private record Entry(State state, long when) {}
+
+    private final Map<String, Entry> worlds = new HashMap<>();
+    private final long refreshMillis;
+
+    /**
+     * @param cs the "environment" section of the config - may be null, in which case we use the defaults
+     */
+    public WorldEnvironment(ConfigurationSection cs) {
+        refreshMillis = (long) (1000 * (cs == null ? 1.0 : cs.getDouble("refresh-seconds", 1.0)));
+    }
+
+    /**
+     * Get the environment for a world, working it out again if it's out of date.
+     * @param w the world
+     * @return the state
+     */
+    public State get(World w) {
+        long now = System.currentTimeMillis();
+        Entry e = worlds.get(w.getName());
+        if (e == null || now - e.when > refreshMillis) {
+            e = new Entry(State.of(w.getTime(), w.hasStorm(), w.isThundering()), now);
+            worlds.put(w.getName(), e);
+        }
+        return e.state;
+    }
+
+    /**
+     * Called when the weather is about to change. The world still has the old weather at this
+     * point, so we use the new state from the event.
+     * @param w     the world
+     * @param storm the new storm state
+     */
+    public void stormChanged(World w, boolean storm) {
+        worlds.put(w.getName(), new Entry(State.of(w.getTime(), storm, w.isThundering()),
+                System.currentTimeMillis()));
+    }
+
+    /**
+     * Called when the thunder is about to change - as above.
+     * @param w       the world
+     * @param thunder the new thunder state
+     */
+    public void thunderChanged(World w, boolean thunder) {
+        worlds.put(w.getName(), new Entry(State.of(w.getTime(), w.hasStorm(), thunder),
+                System.currentTimeMillis()));
+    }
+}
@@ -1,23 +1,36 @@
 package org.pale.gemininpc.ai;
 
+import dev.langchain4j.data.message.AiMessage;
 import dev.langchain4j.data.message.ChatMessage;
 import dev.langchain4j.data.message.SystemMessage;
+import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.memory.chat.MessageWindowChatMemory;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.output.TokenUsage;
 import dev.langchain4j.service.AiServices;
+import dev.langchain4j.service.Result;
+import dev.langchain4j.service.TokenStream;
 import org.pale.gemininpc.Plugin;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 
 public class Chat {
     public static class ChatBuilder {
         private int maxMessages = 30;
         private String systemInst = "";
-        public ChatBuilder maxMessages(int i) { maxMessages = 30; return this;}
+        public ChatBuilder maxMessages(int i) { maxMessages = i; return this;}
         public ChatBuilder systemInstruction(String s){ systemInst = s; return this; }
         public Chat build(ChatModel m){
-            return new Chat(m, this);
+            return new Chat(m, null, this);
+        }
+        public Chat build(ChatModel m, StreamingChatModel sm){
+            return new Chat(m, sm, this);
         }
         private ChatBuilder(){} // avoid creating without "builder"
     }
@@ -32,26 +45,172 @@ public class Chat {
         public String toString(){
             return "Player:"+player+", Action:"+action+", Msg:"+text;
         }
+
+        /**
+         * Make a response holding just part of the text, as it streams in.
+         */
+        public static Response chunk(String player, String text){
+            Response r = new Response();
+            r.player = player;
+            r.text = text;
+            return r;
+        }
     }
 
     private interface Responder {
-        Response respond(String text);
+        Result<Response> respond(String text);
     }
 
+    private interface StreamingResponder {
+        TokenStream respond(String text);
+    }
+
+    private static final Gson gson = new Gson();
+
     Responder responder;
+    StreamingResponder streamingResponder; // null if we don't have a streaming model
     private MessageWindowChatMemory memory;
+    private volatile TokenUsage lastTokenUsage = null;
+    private final int maxMessages;
+
+    // Whether we've sent a message with a full context (a "keyframe"), and how many exchanges and
+    // messages there have been since - counting the keyframe and its reply. Other messages only
+    // carry the changes, so once the keyframe has gone out of the memory window the model no
+    // longer knows the full context and we must send another. We count rather than look for the
+    // keyframe in the memory, because what AiServices stores isn't quite the text we sent.
+    private boolean hasKeyframe = false;
+    private int exchangesSinceKeyframe = 0;
+    private int messagesSinceKeyframe = 0;
 
-    private Chat(ChatModel model, ChatBuilder b) {
+    private Chat(ChatModel model, StreamingChatModel streamingModel, ChatBuilder b) {
+        maxMessages = b.maxMessages;
         memory = MessageWindowChatMemory.withMaxMessages(b.maxMessages);
         responder = AiServices.builder(Responder.class)
                 .chatMemory(memory)
                 .chatModel(model)
                 .build();
+        if(streamingModel != null) {
+            // shares the memory, so the two can be mixed freely
+            streamingResponder = AiServices.builder(StreamingResponder.class)
+                    .chatMemory(memory)
+                    .streamingChatModel(streamingModel)
+                    .build();
+        }
         memory.add(SystemMessage.from(b.systemInst));
     }
 
     public Response sendAndGetResponse(String msg){
-        return responder.respond(msg);
+        Result<Response> r = responder.respond(msg);
+        exchanged();
+        lastTokenUsage = r.tokenUsage();
+        return r.content();
+    }
+
+    /**
+     * @return the tokens used by the last call to the model, as reported by the model - may be null.
+     * Only meaningful on the thread which made the call.
+     */
+    public TokenUsage getLastTokenUsage(){
+        return lastTokenUsage;
+    }
+
+    public boolean canStream(){
+        return streamingResponder != null;
+    }
+
+    /**
+     * Send a message and stream the response back. The "text" field is passed to the sink in
+     * sentence-sized chunks as it arrives; the whole response is parsed and returned once it's
+     * complete (so the action only happens then). This blocks until the response is complete,
+     * which is what we want - it runs on a request thread and the NPC's mailbox relies on it.
+     *
+     * @param msg  the message
+     * @param sink receives the chunks of text, on whatever thread the model calls back on
+     * @return the complete response, or null if something went wrong
+     */
+    public Response sendAndStream(String msg, ResponseStreamParser.Sink sink){
+        ResponseStreamParser parser = new ResponseStreamParser(sink);
+        lastTokenUsage = null;
+        CompletableFuture<String> done = new CompletableFuture<>();
+        streamingResponder.respond(msg)
+                .onPartialResponse(parser::feed)
+                .onCompleteResponse(r -> {
+                    exchanged();
+                    lastTokenUsage = r.tokenUsage();
+                    done.complete(r.aiMessage().text());
+                })
+                .onError(done::completeExceptionally)
+                .start();
+        String text;
+        try {
+            text = done.get();
+        } catch (ExecutionException e) {
+            Plugin.warn("Streaming response failed: " + e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        // the model might have wrapped the object in a code block or some such.
+        int start = text.indexOf('{');
+        int end = text.lastIndexOf('}');
+        if (start < 0 || end < start) {
+            Plugin.warn("Streaming response was not JSON: " + text);
+            return null;
+        }
+        try {
+            return gson.fromJson(text.substring(start, end + 1), Response.class);
+        } catch (JsonParseException e) {
+            Plugin.warn("Cannot parse streaming response: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Add an exchange to the memory without calling the model - used when the response came
+     * from the cache, so the model still knows what "it" said.
+     * @param msg the message we would have sent
+     * @param r   the response
+     */
+    public synchronized void remember(String msg, Response r){
+        memory.add(UserMessage.from(msg));
+        memory.add(AiMessage.from(gson.toJson(r)));
+        exchanged();
+    }
+
+    /**
+     * An exchange - a message and its reply - has been added to the memory.
+     */
+    private synchronized void exchanged(){
+        exchangesSinceKeyframe++;
+        messagesSinceKeyframe += 2;
+    }
+
+    /**
+     * Should the next message carry the full context rather than just the changes?
+     * @param interval the most exchanges we allow between keyframes
+     * @return true if there's never been a keyframe, it was too long ago, or it has dropped out of
+     * the memory window
+     */
+    public synchronized boolean needsKeyframe(int interval){
+        // the system message always keeps its place in the window; the oldest of the others go
+        return !hasKeyframe || exchangesSinceKeyframe >= interval || messagesSinceKeyframe > maxMessages - 1;
+    }
+
+    /**
+     * Note that the exchange just added to the memory carried the full context.
+     */
+    public synchronized void keyframeSent(){
+        hasKeyframe = true;
+        exchangesSinceKeyframe = 0;
+        messagesSinceKeyframe = 2;
+    }
+
+    /**
+     * @return the messages in the memory, oldest first
+     */
+    public List<ChatMessage> getMessages(){
+        return memory.messages();
     }
 
     public void dumpMem(){
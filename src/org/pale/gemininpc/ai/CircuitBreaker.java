@@ -0,0 +1,105 @@
+package org.pale.gemininpc.ai;
+
+import org.pale.gemininpc.Plugin;
+
+/**
+ * A circuit breaker for model calls. After enough failures in a row it "opens", and calls fail
+ * immediately rather than piling up waiting for a model that isn't answering - much like turning
+ * calls off with "/gemini disable", but automatic. After a while it lets a single trial call
+ * through ("half open"); if that works the breaker closes again, otherwise it stays open for
+ * another period.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int threshold;        // consecutive failures before we open
+    private final long openMillis;      // how long we stay open before trying again
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+    private boolean trialInFlight = false;
+
+    // statistics
+    private long failures = 0;
+    private long successes = 0;
+    private long trips = 0;
+    private long fastFails = 0;
+
+    /**
+     * @param threshold   how many failures in a row open the breaker
+     * @param openSeconds how long it stays open before a trial call is allowed
+     */
+    public CircuitBreaker(int threshold, int openSeconds) {
+        this.threshold = Math.max(1, threshold);
+        this.openMillis = openSeconds * 1000L;
+    }
+
+    /**
+     * Ask whether a call can go ahead. If this returns true, the caller must report the outcome
+     * with recordSuccess or recordFailure.
+     * @return true if the call can be made
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) {
+                    fastFails++;
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = false;
+                // fall through to let the trial call through
+            case HALF_OPEN:
+            default:
+                if (trialInFlight) {
+                    fastFails++;
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * @return true if calls would currently be refused - doesn't count as a call
+     */
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && System.currentTimeMillis() < openUntil;
+    }
+
+    public synchronized void recordSuccess() {
+        successes++;
+        consecutiveFailures = 0;
+        if (state != State.CLOSED)
+            Plugin.log("Model circuit breaker closed - calls resumed");
+        state = State.CLOSED;
+        trialInFlight = false;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= threshold) {
+            if (state != State.OPEN) {
+                trips++;
+                Plugin.warn("Model circuit breaker opened after " + consecutiveFailures
+                        + " failures - pausing calls for " + openMillis / 1000 + "s");
+            }
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + openMillis;
+            trialInFlight = false;
+        }
+    }
+
+    public synchronized String toString() {
+        String s = "Breaker " + state;
+        if (state == State.OPEN)
+            s += " (" + Math.max(0, openUntil - System.currentTimeMillis()) / 1000 + "s left)";
+        return s + ", " + consecutiveFailures + " consecutive failures; totals: " + successes + " ok, "
+                + failures + " failed, " + trips + " trips, " + fastFails + " fast-failed";
+    }
+}
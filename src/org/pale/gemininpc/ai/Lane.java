@@ -0,0 +1,20 @@
+package org.pale.gemininpc.ai;
+
+/**
+ * The priority lanes for AI requests, highest priority first. When the quotas or the request
+ * executor are under pressure, the lower lanes are shed first so players never wait behind an
+ * NPC musing to itself.
+ */
+public enum Lane {
+    CHAT,       // a player speaking to the NPC, giving it something or buying from it
+    EVENT,      // greetings, kills and other things that happen to the NPC
+    AMBIENT;    // the NPC looking around on its own, or overhearing other NPCs
+
+    /**
+     * @param other another lane
+     * @return true if this lane has higher priority than the other
+     */
+    public boolean outranks(Lane other) {
+        return ordinal() < other.ordinal();
+    }
+}
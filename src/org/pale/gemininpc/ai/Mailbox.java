@@ -0,0 +1,177 @@
+package org.pale.gemininpc.ai;
+
+import org.pale.gemininpc.Plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Each NPC owns one of these. It makes sure only one model call is in flight for that NPC at a time,
+ * so two requests can't both be messing with the chat memory. Anything which arrives while a call
+ * is running is held, and when the call finishes everything held is sent as a single follow-up
+ * request - so three players talking at once (or a greeting and a chat line) cost one round trip,
+ * not three.
+ * <p>
+ * Batches go into the request executor in the highest lane of anything in them. If a message
+ * arrives in a higher lane while a batch is still waiting in the executor, a new drain task is
+ * submitted in that lane and the old one is taken out of the queue. The old one may already have
+ * started, in which case both run: whichever gets there first takes everything and forgets about
+ * the other, which finds nothing to do (or, if more has arrived since, takes that) - so there is
+ * never a drain we're waiting on which has already been and gone.
+ *
+ * @param <T> the type of message posted
+ */
+public class Mailbox<T> {
+    /**
+     * Processes a batch of messages - this is where the model gets called. It runs on one of the
+     * request executor's threads, never on two at once for the same mailbox.
+     */
+    public interface Handler<T> {
+        void process(List<T> batch);
+    }
+
+    private final Supplier<RequestExecutor> executor;
+    private final Handler<T> handler;
+    private List<T> pending = new ArrayList<>();
+    private Lane pendingLane = null;    // the highest lane of anything pending, or null if nothing is
+    private Drain queued = null;        // the drain task waiting in the executor, if any
+    private boolean running = false;    // true while the handler is running
+
+    /**
+     * A drain task. Each submission is a new one, so a drain which has been superseded (or shed)
+     * can be told apart from the one we're actually waiting on, even if they're in the same lane.
+     */
+    private class Drain implements Runnable {
+        final Lane lane;
+
+        Drain(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            drain(this);
+        }
+    }
+
+    /**
+     * Create a mailbox which uses the plugin's request executor.
+     */
+    public Mailbox(Handler<T> handler) {
+        this(() -> Plugin.getInstance().requestExecutor, handler);
+    }
+
+    /**
+     * @param executor gets the request executor to submit drains to - looked up each time, since
+     *                 the plugin's is created after the NPCs' traits may be
+     * @param handler  processes the batches
+     */
+    public Mailbox(Supplier<RequestExecutor> executor, Handler<T> handler) {
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    /**
+     * Post a message. If nothing is running or waiting for this mailbox a request is submitted
+     * straight away, otherwise the message is merged into the next batch.
+     * @param msg  the message
+     * @param lane the priority lane of the message
+     * @return false if the executor rejected the request and the message was dropped
+     */
+    public boolean post(T msg, Lane lane) {
+        Drain d, superseded;
+        synchronized (this) {
+            pending.add(msg);
+            if (pendingLane == null || lane.outranks(pendingLane))
+                pendingLane = lane;
+            if (running)
+                return true;    // will be picked up when the current call finishes
+            if (queued != null && !lane.outranks(queued.lane))
+                return true;    // will be picked up by the drain already waiting
+            superseded = queued;
+            d = new Drain(lane);
+            queued = d;
+        }
+        // the old drain would only find nothing to do, so don't let it hold a place in the queue
+        if (superseded != null)
+            executor.get().remove(superseded);
+        return submit(d);
+    }
+
+    /**
+     * Hand a drain task to the executor. If it's rejected (or later shed for something more
+     * important), throw away what we were holding - it would only get staler.
+     */
+    private boolean submit(Drain d) {
+        if (executor.get().submit(d.lane, d, () -> discard(d)))
+            return true;
+        discard(d);
+        return false;
+    }
+
+    /**
+     * A drain task was rejected or shed. If it's still the one we're waiting on, drop everything
+     * pending; if it had already been superseded, there's nothing to do.
+     */
+    private synchronized void discard(Drain d) {
+        if (queued != d)
+            return;
+        pending.clear();
+        pendingLane = null;
+        queued = null;
+    }
+
+    private void drain(Drain d) {
+        List<T> batch;
+        Drain stale;
+        synchronized (this) {
+            if (running || pending.isEmpty()) {
+                // superseded by another drain, which has taken everything (and will submit a
+                // follow-up for anything which has arrived since, if it's still running)
+                if (queued == d)
+                    queued = null;
+                return;
+            }
+            running = true;
+            // if we've been superseded by a drain which is still to come, it will find nothing to
+            // do - so forget it, or we'd wait on it forever and never submit a follow-up
+            stale = queued == d ? null : queued;
+            queued = null;
+            batch = pending;
+            pending = new ArrayList<>();
+            pendingLane = null;
+        }
+        if (stale != null)
+            executor.get().remove(stale);
+        Drain next = null;
+        try {
+            handler.process(batch);
+        } finally {
+            synchronized (this) {
+                running = false;
+                if (pendingLane != null && queued == null) {
+                    next = new Drain(pendingLane);
+                    queued = next;
+                }
+            }
+            // things arrived while we were busy; send them all as one follow-up.
+            if (next != null && !submit(next))
+                Plugin.warn("AI request queue full, dropping follow-up request");
+        }
+    }
+
+    /**
+     * @return true if nothing is running, waiting or pending for this mailbox
+     */
+    public synchronized boolean isIdle() {
+        return !running && queued == null && pending.isEmpty();
+    }
+
+    /**
+     * @return the number of messages waiting for the next batch
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+}
@@ -1,49 +1,124 @@
 package org.pale.gemininpc.ai;
 
 import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
 import dev.langchain4j.model.chat.request.ResponseFormat;
 import dev.langchain4j.model.googleai.GoogleAiGeminiChatModel;
+import dev.langchain4j.model.googleai.GoogleAiGeminiStreamingChatModel;
 import dev.langchain4j.model.ollama.OllamaChatModel;
+import dev.langchain4j.model.ollama.OllamaStreamingChatModel;
 import org.bukkit.configuration.ConfigurationSection;
 import org.pale.gemininpc.Plugin;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Encapsulates the model we're using
  */
 public class Model {
     public ChatModel model;
+    public StreamingChatModel streamingModel; // null unless "streaming" is set in the config
+    public final CircuitBreaker breaker;      // shared by both models
+    public ModelPool pool;                    // null unless "endpoints" is set for an Ollama model
     String info;
 
     public Model(ConfigurationSection modelSection){
         String modelName = modelSection.getString("model", "gemini-2.0-flash-lite");
         int maxOutput = modelSection.getInt("max-output-tokens", 0);
+        boolean streaming = modelSection.getBoolean("streaming", false);
+        // the timeout is per attempt; ResilientChatModel does the retrying, so the underlying
+        // models are told not to.
+        int timeout = modelSection.getInt("timeout", 10);
+        breaker = new CircuitBreaker(modelSection.getInt("breaker-threshold", 5),
+                modelSection.getInt("breaker-open-seconds", 30));
 
         StringBuilder sb = new StringBuilder();
 
         if (modelName.contains("gemini")) {
             String apiKey = modelSection.getString("apikey", "NOKEY");
-            int timeout = modelSection.getInt("timeout", 10);
             sb.append("Cloud Gemini model: ").append(modelName).append(", maxOutputTokens :").append(maxOutput);
             var b = GoogleAiGeminiChatModel.builder()
                     .apiKey(apiKey)
                     .modelName(modelName)
                     .logResponses(true)
                     .timeout(Duration.ofSeconds(timeout))
+                    .maxRetries(0)
                     .responseFormat(ResponseFormat.JSON);
             if(maxOutput>0)
                 b.maxOutputTokens(maxOutput);
             model = b.build();
+            if(streaming) {
+                var sb2 = GoogleAiGeminiStreamingChatModel.builder()
+                        .apiKey(apiKey)
+                        .modelName(modelName)
+                        .timeout(Duration.ofSeconds(timeout))
+                        .responseFormat(ResponseFormat.JSON);
+                if(maxOutput>0)
+                    sb2.maxOutputTokens(maxOutput);
+                streamingModel = sb2.build();
+            }
         } else if(modelName.contains("gemma")) {
-            String baseUrl = modelSection.getString("baseUrl", "http://localhost:11434");
-            sb.append("Local Ollama model: ").append(modelName).append(", URL: ").append(baseUrl);
-            var b = OllamaChatModel.builder()
-                    .modelName(modelName)
-                    .baseUrl(baseUrl);
-            model = b.build();
+            List<String> endpoints = modelSection.getStringList("endpoints");
+            if(endpoints.isEmpty()) {
+                String baseUrl = modelSection.getString("baseUrl", "http://localhost:11434");
+                sb.append("Local Ollama model: ").append(modelName).append(", URL: ").append(baseUrl);
+                model = ollama(modelName, baseUrl, timeout);
+                if(streaming)
+                    streamingModel = ollamaStreaming(modelName, baseUrl, timeout);
+            } else {
+                // several servers running the same model - share the requests between them
+                sb.append("Local Ollama model: ").append(modelName).append(", pool: ").append(String.join(", ", endpoints));
+                List<ModelPool.Endpoint> eps = new ArrayList<>();
+                for(String url: endpoints) {
+                    eps.add(new ModelPool.Endpoint(url, ollama(modelName, url, timeout),
+                            streaming ? ollamaStreaming(modelName, url, timeout) : null));
+                }
+                pool = new ModelPool(eps, modelSection.getInt("evict-after", 3),
+                        modelSection.getInt("health-check-seconds", 15));
+                model = pool;
+                if(streaming)
+                    streamingModel = pool.new Streaming();
+            }
         }
+        if(streamingModel != null)
+            sb.append(", streaming");
         info = sb.toString();
+
+        // wrap the models with deadlines, retries and the circuit breaker
+        if(model != null)
+            model = new ResilientChatModel(model, breaker, modelSection);
+        if(streamingModel != null)
+            streamingModel = new ResilientChatModel.Streaming(streamingModel, breaker, modelSection);
+    }
+
+    private static ChatModel ollama(String modelName, String baseUrl, int timeout) {
+        return OllamaChatModel.builder()
+                .modelName(modelName)
+                .baseUrl(baseUrl)
+                .timeout(Duration.ofSeconds(timeout))
+                .maxRetries(0)
+                .responseFormat(ResponseFormat.JSON)
+                .build();
+    }
+
+    private static StreamingChatModel ollamaStreaming(String modelName, String baseUrl, int timeout) {
+        return OllamaStreamingChatModel.builder()
+                .modelName(modelName)
+                .baseUrl(baseUrl)
+                .timeout(Duration.ofSeconds(timeout))
+                .responseFormat(ResponseFormat.JSON)
+                .build();
+    }
+
+    /**
+     * Stop anything the model has running in the background (the pool's health checks).
+     * Called when the model is replaced on reload, and on disable.
+     */
+    public void close() {
+        if(pool != null)
+            pool.close();
     }
 
     public String toString(){
@@ -0,0 +1,238 @@
+package org.pale.gemininpc.ai;
+
+import dev.langchain4j.model.ModelProvider;
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.request.ChatRequestParameters;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
+import org.pale.gemininpc.Plugin;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of model endpoints - typically several Ollama servers running the same model - which
+ * shares requests between them. Each request goes to the healthy endpoint with the fewest requests
+ * outstanding. An endpoint which fails several times in a row, or fails a health check, is evicted;
+ * the periodic health check re-admits it when it answers again.
+ */
+public class ModelPool implements ChatModel {
+    /**
+     * One server in the pool.
+     */
+    public static class Endpoint {
+        final String url;
+        final ChatModel model;
+        final StreamingChatModel streamingModel;    // may be null
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        volatile boolean healthy = true;
+
+        public Endpoint(String url, ChatModel model, StreamingChatModel streamingModel) {
+            this.url = url;
+            this.model = model;
+            this.streamingModel = streamingModel;
+        }
+
+        public String toString() {
+            return url + ": " + (healthy ? "healthy" : "EVICTED") + ", " + outstanding.get()
+                    + " outstanding, " + consecutiveFailures.get() + " consecutive failures";
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final int evictAfter;       // consecutive failures before eviction
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private BukkitTask healthTask;
+
+    /**
+     * @param endpoints      the endpoints
+     * @param evictAfter     how many failures in a row evict an endpoint
+     * @param healthInterval how often to run the health checks, in seconds
+     */
+    public ModelPool(List<Endpoint> endpoints, int evictAfter, int healthInterval) {
+        this.endpoints = List.copyOf(endpoints);
+        this.evictAfter = Math.max(1, evictAfter);
+        long ticks = Math.max(1, healthInterval) * 20L;
+        healthTask = Bukkit.getScheduler().runTaskTimerAsynchronously(Plugin.getInstance(),
+                this::checkHealth, ticks, ticks);
+    }
+
+    /**
+     * Choose the healthy endpoint with the fewest outstanding requests. If they've all been
+     * evicted, we use the one which has failed least recently rather than give up entirely.
+     */
+    private Endpoint choose(boolean streaming) {
+        List<Endpoint> candidates = new ArrayList<>();
+        for (Endpoint e : endpoints) {
+            if (e.healthy && (!streaming || e.streamingModel != null))
+                candidates.add(e);
+        }
+        if (candidates.isEmpty()) {
+            for (Endpoint e : endpoints) {
+                if (!streaming || e.streamingModel != null)
+                    candidates.add(e);
+            }
+            return candidates.stream()
+                    .min(Comparator.comparingInt(e -> e.consecutiveFailures.get()))
+                    .orElseThrow(() -> new IllegalStateException("no model endpoints"));
+        }
+        return candidates.stream()
+                .min(Comparator.comparingInt(e -> e.outstanding.get()))
+                .orElseThrow();
+    }
+
+    private void succeeded(Endpoint e) {
+        e.consecutiveFailures.set(0);
+    }
+
+    private void failed(Endpoint e) {
+        if (e.consecutiveFailures.incrementAndGet() >= evictAfter && e.healthy) {
+            e.healthy = false;
+            Plugin.warn("Model endpoint " + e.url + " evicted after " + evictAfter + " failures");
+        }
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest request) {
+        Endpoint e = choose(false);
+        e.outstanding.incrementAndGet();
+        try {
+            ChatResponse r = e.model.chat(request);
+            succeeded(e);
+            return r;
+        } catch (RuntimeException ex) {
+            failed(e);
+            throw ex;
+        } finally {
+            e.outstanding.decrementAndGet();
+        }
+    }
+
+    /**
+     * Ask every endpoint for its model list - a cheap request which tells us the server is up.
+     * Runs asynchronously; the requests themselves are asynchronous too.
+     */
+    private void checkHealth() {
+        for (Endpoint e : endpoints) {
+            HttpRequest req = HttpRequest.newBuilder(URI.create(e.url + "/api/tags"))
+                    .timeout(Duration.ofSeconds(5))
+                    .GET().build();
+            http.sendAsync(req, HttpResponse.BodyHandlers.discarding()).whenComplete((resp, err) -> {
+                boolean ok = err == null && resp.statusCode() == 200;
+                if (ok && !e.healthy) {
+                    e.consecutiveFailures.set(0);
+                    e.healthy = true;
+                    Plugin.log("Model endpoint " + e.url + " re-admitted");
+                } else if (!ok && e.healthy) {
+                    e.healthy = false;
+                    Plugin.warn("Model endpoint " + e.url + " failed health check, evicted");
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop the health checks - called when the model is replaced or the plugin disabled.
+     */
+    public void close() {
+        if (healthTask != null) {
+            healthTask.cancel();
+            healthTask = null;
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    @Override
+    public ChatRequestParameters defaultRequestParameters() {
+        return endpoints.getFirst().model.defaultRequestParameters();
+    }
+
+    @Override
+    public ModelProvider provider() {
+        return endpoints.getFirst().model.provider();
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return endpoints.getFirst().model.supportedCapabilities();
+    }
+
+    /**
+     * The streaming side of the pool, sharing the same endpoints and their counts.
+     */
+    public class Streaming implements StreamingChatModel {
+        @Override
+        public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+            Endpoint e = choose(true);
+            e.outstanding.incrementAndGet();
+            StreamingChatResponseHandler h = new StreamingChatResponseHandler() {
+                @Override
+                public void onPartialResponse(String partialResponse) {
+                    handler.onPartialResponse(partialResponse);
+                }
+
+                // pass on the handle for cancelling the stream, if the model gives us one
+                @Override
+                public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+                    handler.onPartialResponse(partialResponse, context);
+                }
+
+                @Override
+                public void onCompleteResponse(ChatResponse completeResponse) {
+                    e.outstanding.decrementAndGet();
+                    succeeded(e);
+                    handler.onCompleteResponse(completeResponse);
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    e.outstanding.decrementAndGet();
+                    failed(e);
+                    handler.onError(error);
+                }
+            };
+            try {
+                e.streamingModel.chat(request, h);
+            } catch (RuntimeException ex) {
+                // it failed before it got going, so the handler will never hear about it
+                e.outstanding.decrementAndGet();
+                failed(e);
+                throw ex;
+            }
+        }
+
+        @Override
+        public ChatRequestParameters defaultRequestParameters() {
+            return endpoints.getFirst().streamingModel.defaultRequestParameters();
+        }
+
+        @Override
+        public ModelProvider provider() {
+            return endpoints.getFirst().streamingModel.provider();
+        }
+
+        @Override
+        public Set<Capability> supportedCapabilities() {
+            return endpoints.getFirst().streamingModel.supportedCapabilities();
+        }
+    }
+}
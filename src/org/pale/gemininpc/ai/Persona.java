@@ -6,6 +6,7 @@ import io.marioslab.basis.template.TemplateLoader;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.mcmonkey.sentinel.SentinelTrait;
+import org.pale.gemininpc.ContextEncoder;
 import org.pale.gemininpc.GeminiNPCTrait;
 import org.pale.gemininpc.Plugin;
 import org.pale.gemininpc.utils.TemplateFunctions;
@@ -114,6 +115,9 @@ public class Persona {
         tc.set("gender",t.gender);
         tc.set("isSentinel",t.isSentinel());
         tc.set("isShop", t.isShop());
+        if(t.isShop())
+            tc.set("shopInstructions", t.getShopInstructionsJson());    // the price lists, as JSON
+        tc.set("compactContext", plugin.contextEncoder != ContextEncoder.VERBOSE);
 /*
         for(String s: tc.getVariables()){
             Plugin.log("Template variable: "+s+" = "+tc.get(s));
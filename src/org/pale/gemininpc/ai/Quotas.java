@@ -0,0 +1,140 @@
+package org.pale.gemininpc.ai;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Nested request quotas - global, per world, per NPC and per player. All the quotas which apply to
+ * a request must have room for it to go ahead. Limits are in requests per minute, and are set in
+ * the "quotas" subsection of the "requests" section of the config; a limit of zero means there's
+ * no limit at that level.
+ * <p>
+ * Lower priority lanes can't use the whole of a quota: each lane has a "reserve", the fraction of
+ * every quota which must still be free after its request. So as a quota fills up, ambient requests
+ * are refused first, then events, and the last of it is kept for players talking to NPCs.
+ */
+public class Quotas {
+    /**
+     * The levels at which quotas are applied, from the most specific to the least. This is also the
+     * order in which they are checked, so a single chatty player hits their own limit before eating
+     * into everyone else's.
+     */
+    public enum Scope {
+        PLAYER, NPC, WORLD, GLOBAL
+    }
+
+    private static final Duration PERIOD = Duration.ofMinutes(1);
+
+    private final double[] reserve = new double[Lane.values().length];  // per lane
+    private final RateLimiter global;   // null if unlimited
+    private final int worldLimit, npcLimit, playerLimit;
+    private final Map<String, RateLimiter> worlds = new ConcurrentHashMap<>();
+    private final Map<String, RateLimiter> npcs = new ConcurrentHashMap<>();
+    private final Map<String, RateLimiter> players = new ConcurrentHashMap<>();
+
+    /**
+     * @param cs the "requests" config section - may be null, in which case we use the defaults
+     */
+    public Quotas(ConfigurationSection cs) {
+        ConfigurationSection q = cs == null ? null : cs.getConfigurationSection("quotas");
+        int globalLimit = q == null ? 20 : q.getInt("global", 20);
+        worldLimit = q == null ? 0 : q.getInt("world", 0);
+        npcLimit = q == null ? 6 : q.getInt("npc", 6);
+        playerLimit = q == null ? 10 : q.getInt("player", 10);
+        global = globalLimit > 0 ? new RateLimiter(globalLimit, PERIOD) : null;
+        ConfigurationSection r = q == null ? null : q.getConfigurationSection("reserve");
+        reserve[Lane.CHAT.ordinal()] = 0;
+        reserve[Lane.EVENT.ordinal()] = r == null ? 0.25 : r.getDouble("event", 0.25);
+        reserve[Lane.AMBIENT.ordinal()] = r == null ? 0.5 : r.getDouble("ambient", 0.5);
+    }
+
+    private static RateLimiter limiterFor(Map<String, RateLimiter> map, String key, int limit) {
+        if (limit <= 0 || key == null)
+            return null;
+        return map.computeIfAbsent(key, k -> new RateLimiter(limit, PERIOD));
+    }
+
+    /**
+     * Try to acquire a request from every quota which applies. If any of them is full, those already
+     * acquired are given back. Never blocks.
+     *
+     * @param lane   the priority lane of the request, which decides how much of each quota it can use
+     * @param world  the world name
+     * @param npc    the NPC's name (or some other unique key)
+     * @param player the player's name, or null if this isn't a response to a player
+     * @return null if the request can go ahead, otherwise the scope whose quota is full
+     */
+    public Scope tryAcquire(Lane lane, String world, String npc, String player) {
+        double r = reserve[lane.ordinal()];
+        RateLimiter[] limiters = {
+                limiterFor(players, player, playerLimit),
+                limiterFor(npcs, npc, npcLimit),
+                limiterFor(worlds, world, worldLimit),
+                global
+        };
+        for (int i = 0; i < limiters.length; i++) {
+            if (limiters[i] != null && !limiters[i].tryAcquire(r)) {
+                for (int j = 0; j < i; j++) {
+                    if (limiters[j] != null)
+                        limiters[j].release();
+                }
+                return Scope.values()[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Try to acquire a request shared by several NPCs, as the ambient batches are. Each NPC's own
+     * quota is charged, and the world and global quotas once for the whole request. NPCs whose
+     * quota is full are left out; if none are left, or the world or global quota is full, nothing
+     * is charged. Never blocks.
+     *
+     * @param lane  the priority lane of the request
+     * @param world the world name
+     * @param npcs  the NPCs' names (or other unique keys)
+     * @return the NPCs which can go in the request - empty if the request can't go ahead
+     */
+    public List<String> tryAcquireShared(Lane lane, String world, List<String> npcs) {
+        double r = reserve[lane.ordinal()];
+        List<String> ok = new ArrayList<>();
+        List<RateLimiter> acquired = new ArrayList<>();
+        for (String npc : npcs) {
+            RateLimiter l = limiterFor(this.npcs, npc, npcLimit);
+            if (l == null || l.tryAcquire(r)) {
+                ok.add(npc);
+                if (l != null)
+                    acquired.add(l);
+            }
+        }
+        if (!ok.isEmpty() && tryAcquire(lane, world, null, null) == null)
+            return ok;
+        for (RateLimiter l : acquired)
+            l.release();
+        return List.of();
+    }
+
+    /**
+     * Throw away the limiters for worlds, NPCs and players which haven't done anything for a
+     * while, so the maps don't grow forever.
+     */
+    public void prune() {
+        worlds.values().removeIf(RateLimiter::isIdle);
+        npcs.values().removeIf(RateLimiter::isIdle);
+        players.values().removeIf(RateLimiter::isIdle);
+    }
+
+    /**
+     * @return a description of the usage of the global quota
+     */
+    public String getGlobalUsage() {
+        if (global == null)
+            return "unlimited";
+        return global.getUsage() + "/" + global.getLimit();
+    }
+}
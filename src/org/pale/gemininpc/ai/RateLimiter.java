@@ -0,0 +1,98 @@
+package org.pale.gemininpc.ai;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free rate limiter allowing up to "limit" events in any period, using the generic cell rate
+ * algorithm. Rather than keeping a list of timestamps, we keep a single "theoretical arrival time" -
+ * the time at which the limiter would be empty again if nothing else happened. Each event pushes
+ * it forward by period/limit; an event is refused if that would push it more than a whole period
+ * into the future. That's one CAS per acquire, so lots of threads can hammer it without blocking.
+ */
+public class RateLimiter {
+    private final long period;      // nanoseconds
+    private final long interval;    // nanoseconds each event "costs"
+    private final int limit;
+    private final long origin = System.nanoTime();  // so we don't have to worry about nanoTime being negative
+    private final AtomicLong tat = new AtomicLong(0);
+
+    /**
+     * @param limit  the maximum number of events in any period
+     * @param period the period
+     */
+    public RateLimiter(int limit, Duration period) {
+        if (limit <= 0)
+            throw new IllegalArgumentException("Rate limit must be positive");
+        this.limit = limit;
+        this.period = period.toNanos();
+        this.interval = this.period / limit;
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    /**
+     * Try to record an event without blocking.
+     * @return true if the event is allowed, false if we're at the limit
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(0);
+    }
+
+    /**
+     * Try to record an event without blocking, but only if it would leave some of the limit free
+     * for more important events.
+     * @param reserve the fraction (0-1) of the limit which must remain unused after this event
+     * @return true if the event is allowed, false if we're at the (reduced) limit
+     */
+    public boolean tryAcquire(double reserve) {
+        long allowed = (long) (period * (1.0 - reserve));
+        while (true) {
+            long now = now();
+            long t = tat.get();
+            long next = Math.max(t, now) + interval;
+            if (next - now > allowed)
+                return false;
+            if (tat.compareAndSet(t, next))
+                return true;
+        }
+    }
+
+    /**
+     * Give back an event acquired with tryAcquire - used when a later check fails and the
+     * event never actually happens.
+     */
+    public void release() {
+        while (true) {
+            long now = now();
+            long t = tat.get();
+            if (t <= now)
+                return;     // already drained; nothing to give back
+            if (tat.compareAndSet(t, Math.max(now, t - interval)))
+                return;
+        }
+    }
+
+    /**
+     * @return roughly how many events have happened in the last period
+     */
+    public int getUsage() {
+        long backlog = tat.get() - now();
+        if (backlog <= 0)
+            return 0;
+        return (int) Math.min(limit, (backlog + interval - 1) / interval);
+    }
+
+    /**
+     * @return true if the limiter has completely drained, so it can be thrown away
+     */
+    public boolean isIdle() {
+        return tat.get() <= now();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,191 @@
+package org.pale.gemininpc.ai;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.pale.gemininpc.Plugin;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The plugin-wide executor for AI requests. Each request runs on a virtual thread - they spend
+ * nearly all their time blocked on the model's HTTP call, so there's no point tying up a platform
+ * thread for each. We cap the number in flight; anything beyond that waits in a bounded queue.
+ * <p>
+ * Requests are in priority lanes (see {@link Lane}). Free slots always go to the highest lane
+ * waiting. When the queue is full, a new request sheds the oldest waiting request from the lowest
+ * lane below its own; if there's nothing lower to shed, the new request is rejected (and counted)
+ * and the caller is told so it can drop it. Requests are never shed for others in the same lane -
+ * a reply to something said thirty seconds ago is still better than nothing.
+ */
+public class RequestExecutor {
+    private final ExecutorService threads;
+    private final int maxInFlight;          // how many requests can be talking to the model at once
+    private final int maxQueued;            // how many can be waiting for a slot
+    private final ArrayDeque<Job>[] waiting;   // one queue per lane
+    private int queued = 0;                 // total in all the lane queues
+    private int active = 0;                 // requests currently running
+    private long rejected = 0;              // requests turned away because the queue was full
+    private final long[] shed = new long[Lane.values().length]; // requests shed from each lane
+    private boolean shutdown = false;
+
+    /**
+     * A waiting request.
+     * @param lane   its priority lane
+     * @param task   what to run
+     * @param onShed what to run instead if it's thrown out of the queue for a higher priority request
+     */
+    private record Job(Lane lane, Runnable task, Runnable onShed) {}
+
+    /**
+     * Create the executor from the "requests" section of the config.
+     * @param cs the config section - may be null, in which case we use the defaults
+     */
+    @SuppressWarnings("unchecked")
+    public RequestExecutor(ConfigurationSection cs) {
+        maxInFlight = Math.max(1, cs == null ? 8 : cs.getInt("max-concurrent", 8));
+        maxQueued = Math.max(0, cs == null ? 32 : cs.getInt("queue-size", 32));
+        waiting = new ArrayDeque[Lane.values().length];
+        for (int i = 0; i < waiting.length; i++)
+            waiting[i] = new ArrayDeque<>();
+        threads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("gemininpc-ai-", 0).factory());
+    }
+
+    /**
+     * Submit a request. It will run immediately if there's a free slot, otherwise it will be
+     * queued in its lane - possibly shedding a lower priority request to make room.
+     * @param lane   the priority lane
+     * @param task   the request
+     * @param onShed run (on the caller's thread) if the request is later shed from the queue
+     * @return false if the request was rejected because the queue is full or we're shutting down
+     */
+    public boolean submit(Lane lane, Runnable task, Runnable onShed) {
+        Job victim = null;
+        synchronized (this) {
+            if (shutdown)
+                return false;
+            if (active < maxInFlight) {
+                active++;
+                start(task);
+                return true;
+            }
+            if (queued >= maxQueued) {
+                // find the lowest lane below ours with something waiting, and shed its oldest
+                for (int i = waiting.length - 1; i > lane.ordinal() && victim == null; i--) {
+                    victim = waiting[i].pollFirst();
+                }
+                if (victim == null) {
+                    rejected++;
+                    return false;
+                }
+                queued--;
+                shed[victim.lane.ordinal()]++;
+            }
+            waiting[lane.ordinal()].addLast(new Job(lane, task, onShed));
+            queued++;
+        }
+        if (victim != null && victim.onShed != null)
+            victim.onShed.run();
+        return true;
+    }
+
+    /**
+     * Take a request out of the queue if it's still waiting - for when it has been superseded.
+     * @param task the request, as it was submitted
+     * @return true if it was waiting and has been removed; false if it has already started (or
+     * was shed or never queued)
+     */
+    public synchronized boolean remove(Runnable task) {
+        for (ArrayDeque<Job> q : waiting) {
+            if (q.removeIf(j -> j.task == task)) {
+                queued--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void start(Runnable task) {
+        threads.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                Plugin.warn("AI request failed: " + t);
+            } finally {
+                finished();
+            }
+        });
+    }
+
+    /**
+     * A request has completed - start the next waiting one in its slot, or release the slot.
+     */
+    private synchronized void finished() {
+        Job next = null;
+        if (!shutdown) {
+            for (int i = 0; i < waiting.length && next == null; i++) {
+                next = waiting[i].pollFirst();
+            }
+        }
+        if (next != null) {
+            queued--;
+            start(next.task);
+        } else {
+            active--;
+        }
+    }
+
+    public synchronized int getActiveCount() {
+        return active;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queued;
+    }
+
+    public synchronized int getQueueDepth(Lane lane) {
+        return waiting[lane.ordinal()].size();
+    }
+
+    public synchronized long getShedCount(Lane lane) {
+        return shed[lane.ordinal()];
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * Drop any waiting requests and give the running ones a few seconds to finish before
+     * interrupting them. Called from onDisable.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            shutdown = true;
+            if (queued > 0)
+                Plugin.log("Dropping " + queued + " queued AI requests");
+            for (ArrayDeque<Job> q : waiting)
+                q.clear();
+            queued = 0;
+        }
+        threads.shutdown();
+        try {
+            if (!threads.awaitTermination(5, TimeUnit.SECONDS)) {
+                Plugin.warn("AI requests still running at shutdown, interrupting them");
+                threads.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            threads.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
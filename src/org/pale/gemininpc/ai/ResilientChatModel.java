@@ -0,0 +1,238 @@
+package org.pale.gemininpc.ai;
+
+import dev.langchain4j.exception.RetriableException;
+import dev.langchain4j.model.ModelProvider;
+import dev.langchain4j.model.chat.Capability;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.StreamingChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.request.ChatRequestParameters;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import dev.langchain4j.model.chat.response.PartialResponse;
+import dev.langchain4j.model.chat.response.PartialResponseContext;
+import dev.langchain4j.model.chat.response.StreamingChatResponseHandler;
+import dev.langchain4j.model.chat.response.StreamingHandle;
+import org.bukkit.configuration.ConfigurationSection;
+import org.pale.gemininpc.Plugin;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Wraps the ChatModel built in {@link Model} to make it more robust when the model is slow or
+ * failing. Each request has an overall deadline; transient failures (timeouts, rate limiting,
+ * server errors, network trouble) are retried with jittered exponential backoff within that
+ * deadline; and a {@link CircuitBreaker} makes calls fail fast when the model keeps failing.
+ * <p>
+ * The settings are in the "model" section of the config: deadline, retries, retry-backoff-ms,
+ * breaker-threshold and breaker-open-seconds.
+ */
+public class ResilientChatModel implements ChatModel {
+    /**
+     * Thrown when we don't even try, because the breaker is open.
+     */
+    public static class BreakerOpenException extends RuntimeException {
+        public BreakerOpenException() {
+            super("model circuit breaker is open");
+        }
+    }
+
+    // each attempt runs on its own virtual thread so we can stop waiting for it at the deadline
+    private static final ExecutorService attempts = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final ChatModel delegate;
+    final CircuitBreaker breaker;
+    private final Duration deadline;
+    private final int retries;
+    private final long backoffMillis;
+
+    /**
+     * @param delegate the model to wrap
+     * @param breaker  the circuit breaker, shared with the streaming model
+     * @param cs       the "model" config section
+     */
+    public ResilientChatModel(ChatModel delegate, CircuitBreaker breaker, ConfigurationSection cs) {
+        this.delegate = delegate;
+        this.breaker = breaker;
+        this.deadline = Duration.ofSeconds(cs.getInt("deadline", 30));
+        this.retries = Math.max(0, cs.getInt("retries", 2));
+        this.backoffMillis = cs.getLong("retry-backoff-ms", 500);
+    }
+
+    /**
+     * Stop any attempts still running. Called from onDisable - the executor is shared by all the
+     * models, so it lives until the plugin goes away rather than being closed with a model.
+     */
+    public static void shutdown() {
+        attempts.shutdownNow();
+    }
+
+    /**
+     * @param t an exception from a model call
+     * @return true if it's worth trying again
+     */
+    static boolean isTransient(Throwable t) {
+        while (t != null) {
+            if (t instanceof RetriableException || t instanceof TimeoutException
+                    || t instanceof IOException)
+                return true;
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    @Override
+    public ChatResponse chat(ChatRequest request) {
+        if (!breaker.allowRequest())
+            throw new BreakerOpenException();
+        long end = System.nanoTime() + deadline.toNanos();
+        for (int attempt = 0; ; attempt++) {
+            Future<ChatResponse> f = attempts.submit(() -> delegate.chat(request));
+            Throwable failure;
+            try {
+                ChatResponse r = f.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+                breaker.recordSuccess();
+                return r;
+            } catch (TimeoutException e) {
+                f.cancel(true);
+                failure = e;
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                f.cancel(true);
+                Thread.currentThread().interrupt();
+                breaker.recordFailure();
+                throw new RuntimeException("interrupted waiting for model", e);
+            }
+
+            // full jitter: sleep a random time up to base * 2^attempt
+            long sleep = ThreadLocalRandom.current().nextLong(backoffMillis * (1L << Math.min(attempt, 10)) + 1);
+            boolean timeLeft = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sleep) < end;
+            if (attempt >= retries || !isTransient(failure) || !timeLeft) {
+                breaker.recordFailure();
+                if (failure instanceof RuntimeException re)
+                    throw re;
+                throw new RuntimeException("model call failed: " + failure, failure);
+            }
+            Plugin.log("Model call failed (" + failure + "), retry " + (attempt + 1) + " in " + sleep + "ms");
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                breaker.recordFailure();
+                throw new RuntimeException("interrupted waiting to retry", e);
+            }
+        }
+    }
+
+    @Override
+    public ChatRequestParameters defaultRequestParameters() {
+        return delegate.defaultRequestParameters();
+    }
+
+    @Override
+    public ModelProvider provider() {
+        return delegate.provider();
+    }
+
+    @Override
+    public Set<Capability> supportedCapabilities() {
+        return delegate.supportedCapabilities();
+    }
+
+    /**
+     * The streaming equivalent. We can't retry - the player may already have heard half of the
+     * response - but the breaker and deadline still apply. When the deadline passes we cancel
+     * the stream if the model gives us a handle to do so, so we don't go on paying for tokens
+     * nobody will hear; either way, anything which arrives after that is ignored.
+     */
+    public static class Streaming implements StreamingChatModel {
+        private final StreamingChatModel delegate;
+        private final CircuitBreaker breaker;
+        private final Duration deadline;
+
+        public Streaming(StreamingChatModel delegate, CircuitBreaker breaker, ConfigurationSection cs) {
+            this.delegate = delegate;
+            this.breaker = breaker;
+            this.deadline = Duration.ofSeconds(cs.getInt("deadline", 30));
+        }
+
+        @Override
+        public void chat(ChatRequest request, StreamingChatResponseHandler handler) {
+            if (!breaker.allowRequest()) {
+                handler.onError(new BreakerOpenException());
+                return;
+            }
+            AtomicBoolean finished = new AtomicBoolean(false);
+            AtomicReference<StreamingHandle> stream = new AtomicReference<>();
+            CompletableFuture.delayedExecutor(deadline.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+                if (finished.compareAndSet(false, true)) {
+                    StreamingHandle h = stream.get();
+                    if (h != null)
+                        h.cancel();
+                    breaker.recordFailure();
+                    handler.onError(new TimeoutException("streaming response missed its deadline"));
+                }
+            });
+            delegate.chat(request, new StreamingChatResponseHandler() {
+                @Override
+                public void onPartialResponse(String partialResponse) {
+                    if (!finished.get())
+                        handler.onPartialResponse(partialResponse);
+                }
+
+                // models which can cancel a stream call this one instead, with the handle to do it
+                @Override
+                public void onPartialResponse(PartialResponse partialResponse, PartialResponseContext context) {
+                    stream.set(context.streamingHandle());
+                    if (finished.get())
+                        context.streamingHandle().cancel();     // in case it started after the deadline
+                    else
+                        handler.onPartialResponse(partialResponse, context);
+                }
+
+                @Override
+                public void onCompleteResponse(ChatResponse completeResponse) {
+                    if (finished.compareAndSet(false, true)) {
+                        breaker.recordSuccess();
+                        handler.onCompleteResponse(completeResponse);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    if (finished.compareAndSet(false, true)) {
+                        breaker.recordFailure();
+                        handler.onError(error);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public ChatRequestParameters defaultRequestParameters() {
+            return delegate.defaultRequestParameters();
+        }
+
+        @Override
+        public ModelProvider provider() {
+            return delegate.provider();
+        }
+
+        @Override
+        public Set<Capability> supportedCapabilities() {
+            return delegate.supportedCapabilities();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.pale.gemininpc.ai;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A cache of responses to events - "(enters)", "(you look around)" and the like - which tend to be
+ * sent again and again with the same context for the same persona. It's keyed on a hash of the
+ * persona, the context (with things like the time taken out) and the input.
+ * <p>
+ * So NPCs don't say exactly the same thing every time, each key holds several candidate responses
+ * ("variety" of them). Until a key has that many it always misses, so the model gets asked and its
+ * answer added; once it's full, hits pick a candidate at random. Candidates expire after the TTL,
+ * and the least recently used keys are thrown away when there are too many. Only responses with
+ * no action are cached.
+ */
+public class ResponseCache {
+    private record Candidate(Chat.Response response, long expiry) {}
+
+    private final boolean enabled;
+    private final long ttl;         // milliseconds
+    private final int maxKeys;
+    private final int variety;
+    private final Map<String, List<Candidate>> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long tokensSaved = 0;   // rough estimate
+
+    /**
+     * @param cs the "cache" section of the config; may be null, in which case we use the defaults
+     */
+    public ResponseCache(ConfigurationSection cs) {
+        enabled = cs == null || cs.getBoolean("enabled", true);
+        ttl = (cs == null ? 300 : cs.getLong("ttl", 300)) * 1000L;
+        maxKeys = Math.max(1, cs == null ? 500 : cs.getInt("max-keys", 500));
+        variety = Math.max(1, cs == null ? 3 : cs.getInt("variety", 3));
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Candidate>> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Make a cache key.
+     * @param persona the persona name
+     * @param context the normalised context
+     * @param input   the input
+     * @return the key - a hash of all three
+     */
+    public static String key(String persona, String context, String input) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(persona.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(context.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            md.update(input.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // every JVM has SHA-256
+        }
+    }
+
+    private static Chat.Response copy(Chat.Response r) {
+        Chat.Response c = new Chat.Response();
+        c.player = r.player;
+        c.text = r.text;
+        c.action = r.action;
+        return c;
+    }
+
+    /**
+     * Look up a response.
+     * @param key         the key
+     * @param promptChars the length of the prompt we'd otherwise send, for the savings estimate
+     * @return a copy of one of the candidates, or null if there aren't enough candidates yet
+     */
+    public synchronized Chat.Response get(String key, int promptChars) {
+        List<Candidate> cands = entries.get(key);
+        if (cands != null) {
+            long now = System.currentTimeMillis();
+            cands.removeIf(c -> c.expiry < now);
+            if (cands.size() >= variety) {
+                hits++;
+                Chat.Response r = cands.get(ThreadLocalRandom.current().nextInt(cands.size())).response;
+                // a very rough guess at tokens - about four characters each.
+                tokensSaved += (promptChars + (r.text == null ? 0 : r.text.length())) / 4;
+                return copy(r);
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Add a response from the model as a candidate for a key, if it needs more. Responses which
+     * do something - give an item, go somewhere and so on - are never cached, since a hit would do
+     * it again without the model deciding to.
+     * @param key the key
+     * @param r   the response
+     */
+    public synchronized void put(String key, Chat.Response r) {
+        if (r.action != null && !r.action.isBlank() && !r.action.trim().equalsIgnoreCase("none"))
+            return;
+        List<Candidate> cands = entries.computeIfAbsent(key, k -> new ArrayList<>());
+        if (cands.size() < variety)
+            cands.add(new Candidate(copy(r), System.currentTimeMillis() + ttl));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return a description of the cache's state and statistics
+     */
+    public synchronized String getStats() {
+        long total = hits + misses;
+        return String.format("%d keys, %d hits, %d misses (%.1f%% hit rate), ~%d tokens saved",
+                entries.size(), hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, tokensSaved);
+    }
+}
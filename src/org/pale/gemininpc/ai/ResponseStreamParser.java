@@ -0,0 +1,153 @@
+package org.pale.gemininpc.ai;
+
+/**
+ * Picks the "text" field out of a JSON response as it streams in from the model, a few tokens at a
+ * time, and hands it on in sentence-sized chunks. It doesn't try to build the object - that's done
+ * with Gson once the whole thing has arrived - it just tracks enough of the JSON syntax to know
+ * when it's inside the value of a top-level "text" key. It also notes the "player" field if that
+ * turns up first, so the chunks can be addressed properly.
+ */
+public class ResponseStreamParser {
+    /**
+     * Receives the chunks of text.
+     */
+    public interface Sink {
+        /**
+         * @param player the "player" field if it has arrived yet, otherwise null
+         * @param text   the chunk of text
+         */
+        void chunk(String player, String text);
+    }
+
+    // don't emit a sentence until we've got at least this much, so short ones get grouped.
+    static final int MIN_CHUNK = 40;
+
+    private final Sink sink;
+    private int depth = 0;              // nesting depth of objects and arrays
+    private boolean inString = false;
+    private boolean escape = false;     // last character was a backslash
+    private int unicodeDigits = -1;     // hex digits still to read in a unicode escape, or -1
+    private int unicodeValue = 0;
+    private boolean expectingKey = false;   // the next string at depth 1 is a key
+    private boolean stringIsKey = false;
+    private boolean stringIsText = false;
+    private String key = null;              // the most recent top-level key
+    private String player = null;
+    private final StringBuilder str = new StringBuilder();        // key or other top-level value
+    private final StringBuilder sentence = new StringBuilder();   // text not yet emitted
+
+    public ResponseStreamParser(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @return the "player" field, or null if it hasn't arrived (yet)
+     */
+    public String getPlayer() {
+        return player;
+    }
+
+    /**
+     * Feed in the next fragment of the response.
+     * @param s the fragment
+     */
+    public void feed(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            process(s.charAt(i));
+        }
+    }
+
+    private void process(char c) {
+        if (inString) {
+            if (unicodeDigits > 0) {
+                unicodeValue = unicodeValue * 16 + Character.digit(c, 16);
+                if (--unicodeDigits == 0) {
+                    unicodeDigits = -1;
+                    append((char) unicodeValue);
+                }
+            } else if (escape) {
+                escape = false;
+                switch (c) {
+                    case 'n' -> append('\n');
+                    case 't' -> append('\t');
+                    case 'r' -> append('\r');
+                    case 'b' -> append('\b');
+                    case 'f' -> append('\f');
+                    case 'u' -> {
+                        unicodeDigits = 4;
+                        unicodeValue = 0;
+                    }
+                    default -> append(c);   // quote, backslash, slash
+                }
+            } else if (c == '\\') {
+                escape = true;
+            } else if (c == '"') {
+                inString = false;
+                endString();
+            } else {
+                append(c);
+            }
+            return;
+        }
+        switch (c) {
+            case '{' -> {
+                depth++;
+                if (depth == 1)
+                    expectingKey = true;
+            }
+            case '[' -> depth++;
+            case '}', ']' -> depth--;
+            case ',' -> {
+                if (depth == 1)
+                    expectingKey = true;
+            }
+            case ':' -> {
+                if (depth == 1)
+                    expectingKey = false;
+            }
+            case '"' -> {
+                inString = true;
+                stringIsKey = depth == 1 && expectingKey;
+                stringIsText = depth == 1 && !expectingKey && "text".equals(key);
+                str.setLength(0);
+            }
+            default -> {
+            }
+        }
+    }
+
+    private void append(char c) {
+        if (!stringIsText) {
+            str.append(c);
+            return;
+        }
+        // a sentence ends at whitespace after terminal punctuation
+        if (Character.isWhitespace(c) && sentence.length() >= MIN_CHUNK) {
+            char last = sentence.charAt(sentence.length() - 1);
+            if (last == '.' || last == '!' || last == '?') {
+                emit();
+                return;
+            }
+        }
+        sentence.append(c);
+    }
+
+    private void endString() {
+        if (stringIsKey) {
+            key = str.toString();
+        } else if (stringIsText) {
+            emit();
+        } else if (depth == 1 && "player".equals(key)) {
+            player = str.toString();
+        }
+        stringIsKey = false;
+        stringIsText = false;
+    }
+
+    private void emit() {
+        String s = sentence.toString().trim();
+        sentence.setLength(0);
+        if (!s.isEmpty())
+            sink.chunk(player, s);
+    }
+}
@@ -0,0 +1,184 @@
+package org.pale.gemininpc.ai;
+
+import dev.langchain4j.model.output.TokenUsage;
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the tokens used by model calls - per NPC, per persona, per player and per hour -
+ * from the usage the model reports with each response. Calls come in on the request threads, so
+ * everything here is thread-safe.
+ * <p>
+ * There are optional daily token budgets for each NPC and each persona. Once one is used up, the
+ * NPC stops making calls for the rest of the day (see GeminiNPCTrait.respondTo for what it does
+ * instead). Days are local server days; the daily counts start again at midnight.
+ */
+public class TokenAccounting {
+    /**
+     * Token counts for one NPC, persona, player or hour.
+     */
+    public static class Counters {
+        final LongAdder calls = new LongAdder();
+        final LongAdder input = new LongAdder();
+        final LongAdder output = new LongAdder();
+        final LongAdder total = new LongAdder();
+
+        void add(long in, long out, long tot) {
+            calls.increment();
+            input.add(in);
+            output.add(out);
+            total.add(tot);
+        }
+
+        public long getTotal() {
+            return total.sum();
+        }
+
+        public String toString() {
+            return String.format("%d calls, %d in, %d out, %d total", calls.sum(), input.sum(), output.sum(), total.sum());
+        }
+    }
+
+    private static final int HOURS_KEPT = 48;
+
+    private final Map<String, Counters> npcs = new ConcurrentHashMap<>();
+    private final Map<String, Counters> personae = new ConcurrentHashMap<>();
+    private final Map<String, Counters> players = new ConcurrentHashMap<>();
+    private final Map<Long, Counters> hours = new ConcurrentHashMap<>();    // keyed by hours since the epoch
+    private final Counters all = new Counters();
+
+    // today's totals, for the budgets
+    private final Map<String, LongAdder> npcToday = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> personaToday = new ConcurrentHashMap<>();
+    private volatile LocalDate today = LocalDate.now();
+
+    private volatile long npcBudget = 0;       // daily tokens per NPC, 0 for no limit
+    private volatile long personaBudget = 0;   // daily tokens per persona (all its NPCs together), 0 for no limit
+
+    /**
+     * Set the budgets. Called on startup and on reload; the counts themselves are kept, so a reload
+     * doesn't give everyone a fresh day's budget.
+     * @param cs the "tokens" section of the config; may be null, in which case there are no budgets
+     */
+    public void configure(ConfigurationSection cs) {
+        npcBudget = cs == null ? 0 : cs.getLong("daily-budget-npc", 0);
+        personaBudget = cs == null ? 0 : cs.getLong("daily-budget-persona", 0);
+    }
+
+    /**
+     * Start the daily counts again if it's a new day.
+     */
+    private void checkDay() {
+        LocalDate d = LocalDate.now();
+        if (!d.equals(today)) {
+            synchronized (this) {
+                if (!d.equals(today)) {
+                    npcToday.clear();
+                    personaToday.clear();
+                    today = d;
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the tokens used by a call.
+     * @param usage   the usage reported by the model; may be null if it didn't say
+     * @param npc     the NPC which made the call
+     * @param persona its persona
+     * @param players the players it was talking to, who share the cost; may be empty
+     */
+    public void record(TokenUsage usage, String npc, String persona, List<String> players) {
+        record(usage, 1.0, npc, persona, players);
+    }
+
+    /**
+     * Record a share of the tokens used by a call - for calls made on behalf of several NPCs.
+     * @param share the fraction of the usage to record
+     */
+    public void record(TokenUsage usage, double share, String npc, String persona, List<String> players) {
+        if (usage == null)
+            return;
+        checkDay();
+        long in = Math.round(share * zeroIfNull(usage.inputTokenCount()));
+        long out = Math.round(share * zeroIfNull(usage.outputTokenCount()));
+        long tot = usage.totalTokenCount() == null ? in + out : Math.round(share * usage.totalTokenCount());
+
+        all.add(in, out, tot);
+        npcs.computeIfAbsent(npc, k -> new Counters()).add(in, out, tot);
+        personae.computeIfAbsent(persona, k -> new Counters()).add(in, out, tot);
+        if (!players.isEmpty()) {
+            long n = players.size();
+            for (String p : players)
+                this.players.computeIfAbsent(p, k -> new Counters()).add(in / n, out / n, tot / n);
+        }
+        long hour = System.currentTimeMillis() / 3600000L;
+        hours.computeIfAbsent(hour, k -> new Counters()).add(in, out, tot);
+        hours.keySet().removeIf(h -> h <= hour - HOURS_KEPT);
+
+        npcToday.computeIfAbsent(npc, k -> new LongAdder()).add(tot);
+        personaToday.computeIfAbsent(persona, k -> new LongAdder()).add(tot);
+    }
+
+    private static long zeroIfNull(Integer i) {
+        return i == null ? 0 : i;
+    }
+
+    /**
+     * @return true if the NPC or its persona has used up its tokens for today
+     */
+    public boolean isOverBudget(String npc, String persona) {
+        checkDay();
+        if (npcBudget > 0) {
+            LongAdder a = npcToday.get(npc);
+            if (a != null && a.sum() >= npcBudget)
+                return true;
+        }
+        if (personaBudget > 0) {
+            LongAdder a = personaToday.get(persona);
+            return a != null && a.sum() >= personaBudget;
+        }
+        return false;
+    }
+
+    private static List<String> top(Map<String, Counters> m, int n) {
+        List<String> out = new ArrayList<>();
+        m.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, Counters> e) -> e.getValue().getTotal()).reversed())
+                .limit(n)
+                .forEach(e -> out.add("    " + e.getKey() + ": " + e.getValue()));
+        return out;
+    }
+
+    /**
+     * @param n how many of each to list
+     * @return a report on the biggest users of tokens, and recent hours
+     */
+    public List<String> report(int n) {
+        List<String> out = new ArrayList<>();
+        out.add("Tokens since boot: " + all);
+        out.add("  Budgets per day: NPC " + (npcBudget > 0 ? npcBudget : "unlimited")
+                + ", persona " + (personaBudget > 0 ? personaBudget : "unlimited"));
+        out.add("  Top NPCs:");
+        out.addAll(top(npcs, n));
+        out.add("  Top personae:");
+        out.addAll(top(personae, n));
+        out.add("  Top players:");
+        out.addAll(top(players, n));
+        out.add("  Recent hours:");
+        long hour = System.currentTimeMillis() / 3600000L;
+        for (long h = hour; h > hour - n; h--) {
+            Counters c = hours.get(h);
+            if (c != null)
+                out.add("    " + (hour - h) + "h ago: " + c);
+        }
+        return out;
+    }
+}
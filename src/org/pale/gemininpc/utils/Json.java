@@ -39,4 +39,39 @@ public class Json {
         }
         return diff;
     }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Append a string to a buffer as a quoted JSON string, escaped the same way Gson does it
+     * (without HTML escaping) so the text is identical to what JsonObject.toString() produces.
+     *
+     * @param sb the buffer
+     * @param s  the string
+     */
+    public static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                case '\b' -> sb.append("\\b");
+                case '\f' -> sb.append("\\f");
+                default -> {
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        sb.append("\\u").append(HEX[c >> 12 & 15]).append(HEX[c >> 8 & 15])
+                                .append(HEX[c >> 4 & 15]).append(HEX[c & 15]);
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
 }
@@ -0,0 +1,80 @@
+import dev.langchain4j.data.message.AiMessage;
+import dev.langchain4j.data.message.UserMessage;
+import dev.langchain4j.model.chat.ChatModel;
+import dev.langchain4j.model.chat.request.ChatRequest;
+import dev.langchain4j.model.chat.response.ChatResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pale.gemininpc.ai.Chat;
+
+public class ChatKeyframeTest {
+    // a model which always says the same thing, so we can go through AiServices without a server
+    private static final ChatModel model = new ChatModel() {
+        @Override
+        public ChatResponse doChat(ChatRequest request) {
+            return ChatResponse.builder()
+                    .aiMessage(AiMessage.from("{\"text\":\"hello\",\"action\":\"none\"}"))
+                    .build();
+        }
+    };
+
+    private static boolean inMemory(Chat c, String text) {
+        return c.getMessages().stream()
+                .anyMatch(m -> m instanceof UserMessage um && um.singleText().contains(text));
+    }
+
+    private static Chat.Response response() {
+        Chat.Response r = new Chat.Response();
+        r.text = "hello";
+        r.action = "none";
+        return r;
+    }
+
+    /**
+     * Test that a keyframe is asked for exactly when the one we sent drops out of the memory,
+     * for exchanges added directly (as for cached responses).
+     */
+    @Test
+    public void rememberTest() {
+        Chat c = Chat.builder().maxMessages(7).systemInstruction("sys").build(model);
+        Assertions.assertTrue(c.needsKeyframe(100), "Expected a keyframe first.");
+        c.remember("keyframe", response());
+        c.keyframeSent();
+        for (int i = 0; i < 6; i++) {
+            Assertions.assertEquals(!inMemory(c, "keyframe"), c.needsKeyframe(100),
+                    "Wrong answer after " + i + " exchanges.");
+            c.remember("delta " + i, response());
+        }
+        Assertions.assertTrue(c.needsKeyframe(100), "Expected the keyframe to have gone by now.");
+    }
+
+    /**
+     * The same, but through the model - AiServices may not store exactly the text we sent.
+     */
+    @Test
+    public void modelTest() {
+        Chat c = Chat.builder().maxMessages(7).systemInstruction("sys").build(model);
+        Assertions.assertNotNull(c.sendAndGetResponse("keyframe"));
+        c.keyframeSent();
+        for (int i = 0; i < 6; i++) {
+            Assertions.assertEquals(!inMemory(c, "keyframe"), c.needsKeyframe(100),
+                    "Wrong answer after " + i + " exchanges.");
+            c.sendAndGetResponse("delta " + i);
+        }
+        Assertions.assertTrue(c.needsKeyframe(100), "Expected the keyframe to have gone by now.");
+    }
+
+    /**
+     * Test that a keyframe is asked for after the interval even if it's still in the memory.
+     */
+    @Test
+    public void intervalTest() {
+        Chat c = Chat.builder().maxMessages(30).systemInstruction("sys").build(model);
+        c.remember("keyframe", response());
+        c.keyframeSent();
+        c.remember("delta", response());
+        Assertions.assertFalse(c.needsKeyframe(2));
+        c.remember("delta", response());
+        Assertions.assertTrue(c.needsKeyframe(2));
+    }
+}
@@ -0,0 +1,104 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pale.gemininpc.CompactContextEncoder;
+import org.pale.gemininpc.ContextBuilder;
+import org.pale.gemininpc.ContextEncoder;
+import org.pale.gemininpc.ContextSnapshot;
+import org.pale.gemininpc.WorldEnvironment;
+import org.pale.gemininpc.utils.Json;
+
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Check that the prompt writer produces the same JSON as building the context tree and diffing it.
+ */
+public class ContextPromptTest {
+    static ContextSnapshot snapshot(String time, List<String> players, int bread) {
+        TreeMap<String, Integer> inv = new TreeMap<>();
+        inv.put("BREAD", bread);
+        inv.put("IRON_SWORD", 1);
+        return new ContextSnapshot(
+                new ContextSnapshot.Environment(false,
+                        new WorldEnvironment.State(6000, time, false, false, "clear", "clear"),
+                        false, 15, 0, 15),
+                new ContextSnapshot.RegionInfo("market", "the \"old\" market square"),
+                new ContextSnapshot.WaypointInfo("well", "a deep well", true),
+                players,
+                new ContextSnapshot.Combat(false, null, null, null, null),
+                inv, "world");
+    }
+
+    // the old way: the whole context as a tree, diffed against the last one
+    static String treePrompt(ContextSnapshot prev, ContextSnapshot snap, ContextEncoder enc, String input) {
+        JsonObject curr = snap.toJson(enc, null, "Bob");
+        JsonObject out = new JsonObject();
+        out.add("context", prev == null ? curr : Json.getDifferences(prev.toJson(enc, null, "Bob"), curr));
+        out.addProperty("input", input);
+        return out.toString();
+    }
+
+    private static void check(ContextEncoder enc) {
+        ContextBuilder b = new ContextBuilder();
+        ContextSnapshot s1 = snapshot("12:00", List.of("alice"), 3);
+        ContextSnapshot s2 = snapshot("12:05", List.of("alice", "bert"), 3);
+        String in1 = "alice: hello\nthere", in2 = "event: (you look around)";
+
+        String full = b.writePrompt(s1, enc, null, "Bob", in1);
+        Assertions.assertEquals(JsonParser.parseString(treePrompt(null, s1, enc, in1)),
+                JsonParser.parseString(full));
+        String delta = b.writePrompt(s2, enc, null, "Bob", in2);
+        Assertions.assertEquals(JsonParser.parseString(treePrompt(s1, s2, enc, in2)),
+                JsonParser.parseString(delta));
+    }
+
+    /**
+     * Test that full and delta prompts match the tree-built ones in both encodings.
+     */
+    @Test
+    public void matchesTreeTest() {
+        check(ContextEncoder.VERBOSE);
+        check(CompactContextEncoder.INSTANCE);
+    }
+
+    /**
+     * Test that strings are escaped exactly as Gson would.
+     */
+    @Test
+    public void escapeTest() {
+        String s = "quote \" slash \\ newline \n tab \t bell \u0007 sep \u2028 <html> é";
+        StringBuilder sb = new StringBuilder();
+        Json.quote(sb, s);
+        JsonObject o = new JsonObject();
+        o.addProperty("k", s);
+        Assertions.assertEquals(o.toString(), "{\"k\":" + sb + "}");
+    }
+
+    private static ContextSnapshot sentinel(long ticks, double health) {
+        ContextSnapshot s = snapshot("12:00", List.of("alice"), 3);
+        return new ContextSnapshot(s.environment(), s.region(), s.waypoint(), s.nearbyPlayers(),
+                new ContextSnapshot.Combat(false, null, null, null,
+                        new ContextSnapshot.SentinelInfo(ticks, null, health)),
+                s.inventory(), s.world());
+    }
+
+    /**
+     * Test that a Sentinel's cache key changes exactly when what the prompt says about its last
+     * fight and its health does - not every tick.
+     */
+    @Test
+    public void sentinelKeyTest() {
+        for (long t = 1; t < 5000; t++) {
+            ContextSnapshot a = sentinel(t, 50.5), b = sentinel(t + 1, 50.5);
+            boolean samePrompt = a.toJson(null, "Bob").equals(b.toJson(null, "Bob"));
+            boolean sameKey = a.withoutTime().toString().equals(b.withoutTime().toString());
+            Assertions.assertEquals(samePrompt, sameKey, "Key and prompt disagree at " + t + " ticks.");
+        }
+        Assertions.assertEquals(sentinel(100, 99.2).withoutTime().toString(),
+                sentinel(100, 100).withoutTime().toString());
+        Assertions.assertNotEquals(sentinel(100, 50).withoutTime().toString(),
+                sentinel(100, 51).withoutTime().toString());
+    }
+}
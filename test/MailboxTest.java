@@ -0,0 +1,123 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pale.gemininpc.ai.Lane;
+import org.pale.gemininpc.ai.Mailbox;
+import org.pale.gemininpc.ai.RequestExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MailboxTest {
+    /**
+     * An executor which just holds on to what it's given, so we can run the drains when we like.
+     * Removing never works - as if every drain had already started.
+     */
+    private static class ManualExecutor extends RequestExecutor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        ManualExecutor() {
+            super(null);
+        }
+
+        @Override
+        public boolean submit(Lane lane, Runnable task, Runnable onShed) {
+            tasks.add(task);
+            return true;
+        }
+
+        @Override
+        public boolean remove(Runnable task) {
+            return false;
+        }
+
+        Runnable take(int i) {
+            return tasks.remove(i);
+        }
+    }
+
+    /**
+     * A chat arrives while an event drain has started but not yet taken the batch, so the chat's
+     * drain can't be taken out of the queue. The event drain takes both; the chat drain then finds
+     * nothing to do. The mailbox must still be idle afterwards, and still send new messages.
+     */
+    @Test
+    public void supersededDrainTest() {
+        ManualExecutor ex = new ManualExecutor();
+        List<List<String>> batches = new ArrayList<>();
+        Mailbox<String> mb = new Mailbox<>(() -> ex, batches::add);
+
+        Assertions.assertTrue(mb.post("event", Lane.EVENT));
+        Assertions.assertTrue(mb.post("chat", Lane.CHAT));
+        Assertions.assertEquals(2, ex.tasks.size(), "Expected the chat to submit its own drain.");
+        Runnable eventDrain = ex.take(0), chatDrain = ex.take(0);
+
+        eventDrain.run();
+        Assertions.assertEquals(List.of(List.of("event", "chat")), batches);
+        chatDrain.run();
+        Assertions.assertEquals(1, batches.size(), "Expected the chat drain to find nothing to do.");
+        Assertions.assertTrue(mb.isIdle(), "Expected the mailbox to be idle.");
+
+        Assertions.assertTrue(mb.post("later", Lane.AMBIENT));
+        Assertions.assertEquals(1, ex.tasks.size(), "Expected a later message to be submitted.");
+        ex.take(0).run();
+        Assertions.assertEquals(List.of("later"), batches.getLast());
+        Assertions.assertTrue(mb.isIdle());
+    }
+
+    /**
+     * As above, but the superseded drain runs while the first is still in the handler, and more
+     * arrives meanwhile - which must go in a follow-up.
+     */
+    @Test
+    public void supersededWhileRunningTest() {
+        ManualExecutor ex = new ManualExecutor();
+        List<List<String>> batches = new ArrayList<>();
+        List<Runnable> chatDrain = new ArrayList<>();
+        Mailbox<String>[] box = new Mailbox[1];
+        box[0] = new Mailbox<>(() -> ex, b -> {
+            batches.add(b);
+            if (batches.size() == 1) {
+                // while the first batch is being sent, another message arrives and the
+                // superseded drain gets to run
+                box[0].post("meanwhile", Lane.EVENT);
+                chatDrain.getFirst().run();
+            }
+        });
+        Mailbox<String> mb = box[0];
+
+        mb.post("event", Lane.EVENT);
+        mb.post("chat", Lane.CHAT);
+        Runnable eventDrain = ex.take(0);
+        chatDrain.add(ex.take(0));
+        eventDrain.run();
+
+        Assertions.assertEquals(1, batches.size());
+        Assertions.assertEquals(1, ex.tasks.size(), "Expected a follow-up drain.");
+        ex.take(0).run();
+        Assertions.assertEquals(List.of("meanwhile"), batches.getLast());
+        Assertions.assertTrue(mb.isIdle(), "Expected the mailbox to be idle.");
+    }
+
+    /**
+     * A message arrives while the handler is running, and the follow-up is submitted when it's done.
+     */
+    @Test
+    public void followUpTest() {
+        ManualExecutor ex = new ManualExecutor();
+        List<List<String>> batches = new ArrayList<>();
+        Mailbox<String>[] box = new Mailbox[1];
+        box[0] = new Mailbox<>(() -> ex, b -> {
+            batches.add(b);
+            if (batches.size() == 1) {
+                box[0].post("a", Lane.AMBIENT);
+                box[0].post("b", Lane.CHAT);
+            }
+        });
+        box[0].post("first", Lane.EVENT);
+        ex.take(0).run();
+        Assertions.assertEquals(1, ex.tasks.size(), "Expected exactly one follow-up.");
+        ex.take(0).run();
+        Assertions.assertEquals(List.of(List.of("first"), List.of("a", "b")), batches);
+        Assertions.assertTrue(box[0].isIdle());
+    }
+}
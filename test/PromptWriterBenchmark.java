@@ -0,0 +1,76 @@
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pale.gemininpc.CompactContextEncoder;
+import org.pale.gemininpc.ContextBuilder;
+import org.pale.gemininpc.ContextEncoder;
+import org.pale.gemininpc.ContextSnapshot;
+import org.pale.gemininpc.utils.Json;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing a prompt with ContextBuilder.writePrompt against the old way of building the
+ * context as a JsonObject, diffing it against the last one with Json.getDifferences and turning
+ * the lot into a string. Each invocation alternates between two snapshots which differ in the
+ * time and the nearby players, which is typical of an NPC standing about.
+ * <p>
+ * Run the main method (from the IDE, with the test classpath) to get the time per prompt and -
+ * from the GC profiler - the bytes allocated per prompt, which is what we're really after.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PromptWriterBenchmark {
+    @Param({"verbose", "compact"})
+    public String encoding;
+
+    private ContextEncoder enc;
+    private ContextSnapshot[] snaps;
+    private JsonObject prevTree;
+    private ContextBuilder builder;
+    private int n;
+
+    @Setup
+    public void setup() {
+        enc = encoding.equals("compact") ? CompactContextEncoder.INSTANCE : ContextEncoder.VERBOSE;
+        snaps = new ContextSnapshot[]{
+                ContextPromptTest.snapshot("12:00", List.of("alice"), 3),
+                ContextPromptTest.snapshot("12:05", List.of("alice", "bert"), 3)
+        };
+        prevTree = null;
+        builder = new ContextBuilder();
+        n = 0;
+    }
+
+    @Benchmark
+    public String tree() {
+        ContextSnapshot snap = snaps[n++ & 1];
+        JsonObject curr = snap.toJson(enc, null, "Bob");
+        JsonObject out = new JsonObject();
+        out.add("context", Json.getDifferences(prevTree, curr));
+        out.addProperty("input", "event: (you look around)");
+        prevTree = curr;
+        return out.toString();
+    }
+
+    @Benchmark
+    public String writer() {
+        ContextSnapshot snap = snaps[n++ & 1];
+        return builder.writePrompt(snap, enc, null, "Bob", "event: (you look around)");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(PromptWriterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
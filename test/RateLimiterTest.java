@@ -0,0 +1,73 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pale.gemininpc.ai.RateLimiter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RateLimiterTest {
+    /**
+     * Test that we get exactly the limit in a burst, and no more.
+     */
+    @Test
+    public void burstTest(){
+        RateLimiter r = new RateLimiter(5, Duration.ofMinutes(1));
+        for(int i=0;i<5;i++)
+            Assertions.assertTrue(r.tryAcquire(), "Expected acquire "+i+" to succeed.");
+        Assertions.assertFalse(r.tryAcquire(), "Expected acquire beyond the limit to fail.");
+        Assertions.assertEquals(5, r.getUsage());
+    }
+
+    /**
+     * Test that releasing an event lets another one through.
+     */
+    @Test
+    public void releaseTest(){
+        RateLimiter r = new RateLimiter(2, Duration.ofMinutes(1));
+        Assertions.assertTrue(r.tryAcquire());
+        Assertions.assertTrue(r.tryAcquire());
+        Assertions.assertFalse(r.tryAcquire());
+        r.release();
+        Assertions.assertTrue(r.tryAcquire(), "Expected acquire after release to succeed.");
+    }
+
+    /**
+     * Test that a reserve keeps part of the limit free for more important events.
+     */
+    @Test
+    public void reserveTest(){
+        RateLimiter r = new RateLimiter(10, Duration.ofMinutes(1));
+        int n=0;
+        while(r.tryAcquire(0.5))
+            n++;
+        Assertions.assertEquals(5, n, "Expected only half the limit with a reserve of 0.5.");
+        for(int i=0;i<5;i++)
+            Assertions.assertTrue(r.tryAcquire(), "Expected the reserved part to be available with no reserve.");
+        Assertions.assertFalse(r.tryAcquire());
+    }
+
+    /**
+     * Test that lots of threads hammering the limiter between them get exactly the limit.
+     */
+    @Test
+    public void concurrentTest() throws InterruptedException {
+        RateLimiter r = new RateLimiter(100, Duration.ofMinutes(1));
+        AtomicInteger acquired = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for(int i=0;i<16;i++){
+            Thread t = new Thread(() -> {
+                for(int j=0;j<50;j++){
+                    if(r.tryAcquire())
+                        acquired.incrementAndGet();
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for(Thread t: threads)
+            t.join();
+        Assertions.assertEquals(100, acquired.get());
+    }
+}
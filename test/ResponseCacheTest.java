@@ -0,0 +1,68 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pale.gemininpc.ai.Chat;
+import org.pale.gemininpc.ai.ResponseCache;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class ResponseCacheTest {
+    private static Chat.Response response(String text){
+        Chat.Response r = new Chat.Response();
+        r.text = text;
+        r.action = "none";
+        return r;
+    }
+
+    /**
+     * Test that a key misses until it has "variety" candidates, and then hits with one of them.
+     */
+    @Test
+    public void varietyTest(){
+        ResponseCache cache = new ResponseCache(null);   // defaults: variety 3
+        String key = ResponseCache.key("soldier", "{\"weather\":\"clear\"}", "event: (you look around)");
+        Set<String> texts = new HashSet<>();
+        for(int i=0;i<3;i++){
+            Assertions.assertNull(cache.get(key, 100), "Expected a miss with "+i+" candidates.");
+            cache.put(key, response("hello "+i));
+            texts.add("hello "+i);
+        }
+        Chat.Response r = cache.get(key, 100);
+        Assertions.assertNotNull(r, "Expected a hit once the key has enough candidates.");
+        Assertions.assertTrue(texts.contains(r.text));
+    }
+
+    /**
+     * Test that different personae, contexts and inputs give different keys.
+     */
+    @Test
+    public void keyTest(){
+        String k = ResponseCache.key("a", "b", "c");
+        Assertions.assertEquals(k, ResponseCache.key("a", "b", "c"));
+        Assertions.assertNotEquals(k, ResponseCache.key("x", "b", "c"));
+        Assertions.assertNotEquals(k, ResponseCache.key("a", "x", "c"));
+        Assertions.assertNotEquals(k, ResponseCache.key("a", "b", "x"));
+        Assertions.assertNotEquals(ResponseCache.key("ab", "", "c"), ResponseCache.key("a", "b", "c"));
+    }
+
+    /**
+     * Test that responses with actions are never cached, so a hit can't repeat them.
+     */
+    @Test
+    public void actionTest(){
+        ResponseCache cache = new ResponseCache(null);
+        String key = ResponseCache.key("shopkeeper", "{}", "event: (enters)");
+        for(int i=0;i<5;i++){
+            Chat.Response r = response("have a sword "+i);
+            r.action = "give iron_sword";
+            cache.put(key, r);
+        }
+        Assertions.assertNull(cache.get(key, 100), "Expected responses with actions not to be cached.");
+        for(int i=0;i<3;i++){
+            Chat.Response r = response("hello "+i);
+            r.action = i == 0 ? null : (i == 1 ? "" : "None");
+            cache.put(key, r);
+        }
+        Assertions.assertNotNull(cache.get(key, 100), "Expected responses without actions to be cached.");
+    }
+}
@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pale.gemininpc.ai.ResponseStreamParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ResponseStreamParserTest {
+    private static final String RESPONSE = "{\"action\": \"none\", \"player\": \"fred\", " +
+            "\"text\": \"Hello there, fred! It is a fine day for a walk in the woods. " +
+            "Do you \\\"like\\\" walking? I am fond of it myself, truly. Bye.\"}";
+
+    private static List<String> parse(String json, int step, String[] player){
+        List<String> out = new ArrayList<>();
+        ResponseStreamParser p = new ResponseStreamParser((pl, text) -> {
+            player[0] = pl;
+            out.add(text);
+        });
+        for(int i=0;i<json.length();i+=step){
+            p.feed(json.substring(i, Math.min(json.length(), i+step)));
+        }
+        return out;
+    }
+
+    /**
+     * Test that the text comes out in sentence-sized chunks with escapes decoded, however the
+     * response is split up as it streams in.
+     */
+    @Test
+    public void chunkTest(){
+        for(int step: new int[]{1, 3, 7, RESPONSE.length()}){
+            String[] player = new String[1];
+            List<String> chunks = parse(RESPONSE, step, player);
+            Assertions.assertEquals(List.of(
+                    "Hello there, fred! It is a fine day for a walk in the woods.",
+                    "Do you \"like\" walking? I am fond of it myself, truly.",
+                    "Bye."), chunks, "Unexpected chunks with step "+step);
+            Assertions.assertEquals("fred", player[0]);
+        }
+    }
+
+    /**
+     * Test that "text" keys in nested objects, and stuff around the object, are ignored.
+     */
+    @Test
+    public void nestedTest(){
+        String json = "```json\n{\"action\": \"none\", \"extra\": {\"text\": \"no\"}, \"text\": \"yes\"}\n```";
+        List<String> chunks = parse(json, 2, new String[1]);
+        Assertions.assertEquals(List.of("yes"), chunks);
+    }
+}